@@ -14,8 +14,14 @@ public interface CanvasLite {
     public void drawColor(int color, PorterDuff.Mode mode);
     public void drawBitmap(Bitmap bitmap, Rect src, RectF dst, Paint paint);
     public void drawBitmap(Bitmap bitmap, Matrix matrix, Paint paint);
+    // Unscaled, top left corner at (left, top).
+    public void drawBitmap(Bitmap bitmap, float left, float top, Paint paint);
 
     public void drawTo(Canvas drawCanvas, float left, float top, Paint paint, boolean dirtyOnly);
+    // Like drawTo, but only bothers with the part of the canvas inside visible (in canvas
+    // coordinates), e.g. what's on screen while zoomed in.
+    public void drawTo(Canvas drawCanvas, float left, float top, Paint paint, boolean dirtyOnly,
+            RectF visible);
     public Bitmap toBitmap();
     public void recycleBitmaps();
     public int getWidth();
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.markers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import android.util.Log;
+
+// Second-tier storage for undo history: an append-only, memory-mapped file that holds tile
+// deltas (see TileDelta) which no longer fit in the heap budget. Space is never reclaimed while
+// the file is open; once it fills up, callers go back to dropping their oldest history.
+final class HistorySpill {
+    private static final String TAG = "Markers/HistorySpill";
+
+    // Mapped a piece at a time so that a small history doesn't reserve the whole file.
+    // A single delta is at most TileDelta.scratchSize() ints, well under one chunk.
+    private static final int CHUNK_INTS = 1024 * 1024; // 4MB
+
+    private final File mFile;
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChannel;
+    private final int mMaxChunks;
+    private final ArrayList<IntBuffer> mChunks = new ArrayList<IntBuffer>();
+    private int mChunkPos = CHUNK_INTS; // ints used in the last chunk
+    private boolean mFull;
+
+    public HistorySpill(File file, long maxBytes) throws IOException {
+        mFile = file;
+        mRaf = new RandomAccessFile(file, "rw");
+        mRaf.setLength(0);
+        mChannel = mRaf.getChannel();
+        mMaxChunks = (int) (maxBytes / (CHUNK_INTS * 4L));
+    }
+
+    // Returns a handle for reading the delta back, or -1 if there's no more room.
+    public synchronized long append(int[] delta) {
+        if (mFull) return -1;
+        if (mChunkPos + delta.length > CHUNK_INTS) {
+            if (mChunks.size() >= mMaxChunks || !mapChunk()) {
+                mFull = true;
+                return -1;
+            }
+        }
+        final int chunk = mChunks.size() - 1;
+        final IntBuffer buf = mChunks.get(chunk);
+        buf.position(mChunkPos);
+        buf.put(delta);
+        final long handle = (long) chunk * CHUNK_INTS + mChunkPos;
+        mChunkPos += delta.length;
+        return handle;
+    }
+
+    public synchronized int[] read(long handle, int length) {
+        final IntBuffer buf = mChunks.get((int) (handle / CHUNK_INTS));
+        buf.position((int) (handle % CHUNK_INTS));
+        final int[] delta = new int[length];
+        buf.get(delta);
+        return delta;
+    }
+
+    public synchronized boolean isFull() {
+        return mFull;
+    }
+
+    public synchronized long getSize() {
+        return (long) mChunks.size() * CHUNK_INTS * 4;
+    }
+
+    private boolean mapChunk() {
+        try {
+            final long start = (long) mChunks.size() * CHUNK_INTS * 4;
+            mChunks.add(mChannel.map(FileChannel.MapMode.READ_WRITE, start, CHUNK_INTS * 4L)
+                    .order(ByteOrder.nativeOrder()).asIntBuffer());
+            mChunkPos = 0;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "couldn't extend " + mFile, e);
+            return false;
+        }
+    }
+
+    public synchronized void close() {
+        mChunks.clear();
+        mFull = true;
+        try {
+            mRaf.close();
+        } catch (IOException e) {
+            Log.w(TAG, "couldn't close " + mFile, e);
+        }
+        mFile.delete();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.markers;
+
+import android.util.Log;
+
+// How far behind the finger the ink on screen is, averaged over a number of frames and logged.
+// Each frame, the ink's tip (with and without the predicted segment) is measured against the
+// latest input: its age plus how long the finger took, at its current velocity, to get from
+// the tip to there.
+final class InkLatency {
+    static final String TAG = "Markers/InkLatency";
+    static final int REPORT_FRAMES = 120;
+
+    private double mInkMs, mPredictedMs;
+    private int mFrames;
+
+    // ink/predicted: positions of the tips; input: the latest sample, inputAge ms old, moving
+    // at (vx, vy) per ms. All in the same coordinates.
+    void record(float inkX, float inkY, float predictedX, float predictedY,
+            float inputX, float inputY, long inputAge, float vx, float vy) {
+        final float speed2 = vx*vx + vy*vy;
+        if (speed2 <= 0) return;
+        mInkMs += inputAge + ((inputX - inkX) * vx + (inputY - inkY) * vy) / speed2;
+        mPredictedMs += inputAge
+                + ((inputX - predictedX) * vx + (inputY - predictedY) * vy) / speed2;
+        if (++mFrames == REPORT_FRAMES) {
+            Log.v(TAG, String.format("ink trails input by %.1f ms, %.1f ms with prediction",
+                    mInkMs / mFrames, mPredictedMs / mFrames));
+            mInkMs = mPredictedMs = 0;
+            mFrames = 0;
+        }
+    }
+}
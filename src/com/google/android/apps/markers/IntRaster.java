@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.markers;
+
+import java.util.Arrays;
+
+// A software rasterizer for the stamps that the stroker lays down, in plain Java so that it runs
+// (and can be measured) anywhere. Pixels are premultiplied 0xAARRGGBB ints in square tiles; a tile
+// that has never been drawn on is null, i.e. transparent.
+//
+// Every primitive is either painted over what's there (SRC_OVER) or erases it (DST_OUT), which is
+// all that the markers ever do. Edges are antialiased by coverage.
+public final class IntRaster {
+    private static final int SHAPE_CIRCLE = 0;
+    private static final int SHAPE_RECT = 1;
+    private static final int SHAPE_MASK = 2;
+    private static final int SHAPE_IMAGE = 3;
+
+    private final int mWidth, mHeight;
+    private final int mTileSize, mTileShift, mTileMask;
+    private final int mTilesX, mTilesY;
+    private final int[][] mTiles;
+    // bumped whenever a tile changes, so that whoever displays it knows when to copy it again
+    private final int[] mTileGenerations;
+
+    // the shape being stamped (see stamp())
+    private int mShape;
+    private float mCx, mCy, mR;
+    private float mLeft, mTop, mRight, mBottom;
+    private int[] mMask;
+    private int mMaskStride, mMaskW, mMaskH;
+    private float mMaskX, mMaskY, mMaskScaleX, mMaskScaleY;
+    private final float[] mInverse = new float[6];
+
+    public IntRaster(int w, int h, int tileSize) {
+        if (Integer.bitCount(tileSize) != 1) {
+            throw new IllegalArgumentException("tile size must be a power of two: " + tileSize);
+        }
+        mWidth = w;
+        mHeight = h;
+        mTileSize = tileSize;
+        mTileShift = Integer.numberOfTrailingZeros(tileSize);
+        mTileMask = tileSize - 1;
+        mTilesX = (w + mTileMask) >> mTileShift;
+        mTilesY = (h + mTileMask) >> mTileShift;
+        mTiles = new int[mTilesX * mTilesY][];
+        mTileGenerations = new int[mTiles.length];
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getTileSize() {
+        return mTileSize;
+    }
+
+    public int getTilesX() {
+        return mTilesX;
+    }
+
+    public int getTilesY() {
+        return mTilesY;
+    }
+
+    // The pixels of tile (tx, ty), row-major, or null if it's blank. Don't hold on to it.
+    public int[] getTile(int tx, int ty) {
+        return mTiles[ty * mTilesX + tx];
+    }
+
+    public int getTileGeneration(int tx, int ty) {
+        return mTileGenerations[ty * mTilesX + tx];
+    }
+
+    // Premultiplied 0xAARRGGBB.
+    public int getPixel(int x, int y) {
+        final int[] tile = mTiles[(y >> mTileShift) * mTilesX + (x >> mTileShift)];
+        if (tile == null) return 0;
+        return tile[((y & mTileMask) << mTileShift) + (x & mTileMask)];
+    }
+
+    // color is an ordinary (unpremultiplied) 0xAARRGGBB; if erase, only its alpha matters.
+    public void fillCircle(float x, float y, float r, int color, boolean erase) {
+        mShape = SHAPE_CIRCLE;
+        mCx = x;
+        mCy = y;
+        mR = r;
+        stamp(x - r, y - r, x + r, y + r, color, erase);
+    }
+
+    public void fillRect(float l, float t, float r, float b, int color, boolean erase) {
+        mShape = SHAPE_RECT;
+        mLeft = l;
+        mTop = t;
+        mRight = r;
+        mBottom = b;
+        stamp(l, t, r, b, color, erase);
+    }
+
+    // Stamps color through an alpha mask (0..255 per pixel, stride wide), scaling the part of it
+    // at (sl,st)-(sr,sb) to cover (l,t)-(r,b).
+    public void fillMask(int[] alpha, int stride, int sl, int st, int sr, int sb,
+            float l, float t, float r, float b, int color, boolean erase) {
+        if (r <= l || b <= t) return;
+        mShape = SHAPE_MASK;
+        mMask = alpha;
+        mMaskStride = stride;
+        mMaskW = sr;
+        mMaskH = sb;
+        mLeft = l;
+        mTop = t;
+        mMaskScaleX = (sr - sl) / (r - l);
+        mMaskScaleY = (sb - st) / (b - t);
+        mMaskX = sl;
+        mMaskY = st;
+        stamp(l, t, r, b, color, erase);
+        mMask = null;
+    }
+
+    // Paints an image (unpremultiplied 0xAARRGGBB, w x h) through an affine transform. inverse
+    // maps canvas coordinates back into the image: {a, b, c, d, e, f} for
+    // u = a*x + b*y + c, v = d*x + e*y + f. alpha scales the whole image.
+    public void drawImage(int[] argb, int w, int h, float[] inverse,
+            float l, float t, float r, float b, int alpha) {
+        mShape = SHAPE_IMAGE;
+        mMask = argb;
+        mMaskW = w;
+        mMaskH = h;
+        System.arraycopy(inverse, 0, mInverse, 0, 6);
+        stamp(l, t, r, b, alpha << 24, false);
+        mMask = null;
+    }
+
+    // Sets every pixel to color, or blends it over them.
+    public void fill(int color, boolean replace) {
+        final int p = premultiply(color);
+        for (int i=0; i<mTiles.length; i++) {
+            if (replace && p == 0) {
+                mTiles[i] = null;
+            } else if (replace || mTiles[i] == null) {
+                if (mTiles[i] == null) mTiles[i] = new int[mTileSize * mTileSize];
+                Arrays.fill(mTiles[i], p);
+            } else {
+                final int[] tile = mTiles[i];
+                final int inv = 255 - (p >>> 24);
+                for (int j=0; j<tile.length; j++) {
+                    tile[j] = p + scale(tile[j], inv);
+                }
+            }
+            mTileGenerations[i]++;
+        }
+    }
+
+    // Visits every pixel whose square might intersect (l,t)-(r,b), one tile at a time, and
+    // blends in color according to its coverage by the current shape.
+    private void stamp(float l, float t, float r, float b, int color, boolean erase) {
+        final int x0 = Math.max(0, floor(l));
+        final int y0 = Math.max(0, floor(t));
+        final int x1 = Math.min(mWidth - 1, floor(r));
+        final int y1 = Math.min(mHeight - 1, floor(b));
+        if (x1 < x0 || y1 < y0) return;
+        final int ca = color >>> 24;
+        for (int ty = y0 >> mTileShift; ty <= y1 >> mTileShift; ty++) {
+            final int ty0 = Math.max(y0, ty << mTileShift);
+            final int ty1 = Math.min(y1, (ty << mTileShift) + mTileMask);
+            for (int tx = x0 >> mTileShift; tx <= x1 >> mTileShift; tx++) {
+                final int tx0 = Math.max(x0, tx << mTileShift);
+                final int tx1 = Math.min(x1, (tx << mTileShift) + mTileMask);
+                final int p = ty * mTilesX + tx;
+                int[] tile = mTiles[p];
+                if (tile == null) {
+                    if (erase) continue; // nothing to erase
+                    tile = mTiles[p] = new int[mTileSize * mTileSize];
+                }
+                mTileGenerations[p]++;
+                for (int y = ty0; y <= ty1; y++) {
+                    int i = ((y & mTileMask) << mTileShift) + (tx0 & mTileMask);
+                    for (int x = tx0; x <= tx1; x++, i++) {
+                        final int src;
+                        if (mShape == SHAPE_IMAGE) {
+                            src = sampleImage(x + 0.5f, y + 0.5f);
+                            if (src == 0) continue;
+                            final int a = mul255(src >>> 24, ca);
+                            tile[i] = scale(src, ca) + scale(tile[i], 255 - a);
+                            continue;
+                        }
+                        final int cov = coverage(x, y);
+                        if (cov == 0) continue;
+                        final int a = mul255(ca, cov);
+                        if (erase) {
+                            tile[i] = scale(tile[i], 255 - a);
+                        } else {
+                            tile[i] = premultiply((a << 24) | (color & 0xFFFFFF))
+                                    + scale(tile[i], 255 - a);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // How much of pixel (x, y) the current shape covers, 0..255.
+    private int coverage(int x, int y) {
+        switch (mShape) {
+        case SHAPE_CIRCLE: {
+            final float dx = x + 0.5f - mCx;
+            final float dy = y + 0.5f - mCy;
+            final float d2 = dx*dx + dy*dy;
+            final float inner = mR - 0.5f;
+            if (inner > 0 && d2 <= inner*inner) return 255;
+            final float outer = mR + 0.5f;
+            if (d2 >= outer*outer) return 0;
+            return clamp255((outer - (float) Math.sqrt(d2)) * 255);
+        }
+        case SHAPE_RECT: {
+            final float cx = Math.min(x + 1, mRight) - Math.max(x, mLeft);
+            final float cy = Math.min(y + 1, mBottom) - Math.max(y, mTop);
+            if (cx <= 0 || cy <= 0) return 0;
+            return clamp255(cx * cy * 255);
+        }
+        case SHAPE_MASK: {
+            // bilinear, so that small stamps don't shimmer
+            final float u = mMaskX + (x + 0.5f - mLeft) * mMaskScaleX - 0.5f;
+            final float v = mMaskY + (y + 0.5f - mTop) * mMaskScaleY - 0.5f;
+            final int u0 = floor(u), v0 = floor(v);
+            final float fu = u - u0, fv = v - v0;
+            final float a = (1 - fu) * (1 - fv) * maskAt(u0, v0)
+                    + fu * (1 - fv) * maskAt(u0 + 1, v0)
+                    + (1 - fu) * fv * maskAt(u0, v0 + 1)
+                    + fu * fv * maskAt(u0 + 1, v0 + 1);
+            return clamp255(a);
+        }
+        }
+        return 0;
+    }
+
+    private int maskAt(int u, int v) {
+        if (u < mMaskX || v < mMaskY || u >= mMaskW || v >= mMaskH) return 0;
+        return mMask[v * mMaskStride + u];
+    }
+
+    // Nearest-neighbor sample of the current image, premultiplied.
+    private int sampleImage(float x, float y) {
+        final float[] m = mInverse;
+        final int u = floor(m[0] * x + m[1] * y + m[2]);
+        final int v = floor(m[3] * x + m[4] * y + m[5]);
+        if (u < 0 || v < 0 || u >= mMaskW || v >= mMaskH) return 0;
+        return premultiply(mMask[v * mMaskW + u]);
+    }
+
+    private static int floor(float v) {
+        final int i = (int) v;
+        return (v < i) ? i - 1 : i;
+    }
+
+    private static int clamp255(float v) {
+        return (v <= 0) ? 0 : (v >= 255) ? 255 : (int) (v + 0.5f);
+    }
+
+    // a * b / 255, rounded
+    static int mul255(int a, int b) {
+        final int p = a * b + 128;
+        return (p + (p >> 8)) >> 8;
+    }
+
+    // Scales all four channels of a premultiplied pixel by k / 255.
+    static int scale(int p, int k) {
+        if (k == 255) return p;
+        if (k == 0 || p == 0) return 0;
+        return (mul255(p >>> 24, k) << 24)
+                | (mul255((p >> 16) & 0xFF, k) << 16)
+                | (mul255((p >> 8) & 0xFF, k) << 8)
+                | mul255(p & 0xFF, k);
+    }
+
+    static int premultiply(int c) {
+        final int a = c >>> 24;
+        if (a == 255) return c;
+        if (a == 0) return 0;
+        return (a << 24)
+                | (mul255((c >> 16) & 0xFF, a) << 16)
+                | (mul255((c >> 8) & 0xFF, a) << 8)
+                | mul255(c & 0xFF, a);
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.markers;
+
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+// A CanvasLite that does its own rasterizing, into an IntRaster, instead of going through Skia.
+//
+// Only what the stroker needs is supported: ink comes from the paint's color (alpha included),
+// and a paint with any xfermode at all is taken to be the eraser (DST_OUT). Stamped bitmaps are
+// used as alpha masks. Tiles are copied into bitmaps only to be drawn on screen.
+public class IntRasterCanvas implements CanvasLite {
+    public static final int DEFAULT_TILE_SIZE = 64;
+    private static final int MAX_MASKS = 64;
+
+    private final IntRaster mRaster;
+    private final Bitmap.Config mConfig = Bitmap.Config.ARGB_8888;
+
+    // for drawTo
+    private Bitmap[] mTileBitmaps;
+    private int[] mTileBitmapGenerations;
+    private final int[] mUpload;
+    private final IntBuffer mUploadBuf;
+    private final boolean mLittleEndian = (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN);
+    private final Rect mTileDst = new Rect();
+
+    // the alpha channels of the most recently stamped bitmaps: with StampCache, there's one
+    // bitmap per radius, and a stroke goes through a lot of radii
+    private final LinkedHashMap<Bitmap, int[]> mMasks =
+            new LinkedHashMap<Bitmap, int[]>(MAX_MASKS, 0.75f, true) { // access order
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Bitmap, int[]> eldest) {
+            return size() > MAX_MASKS;
+        }
+    };
+
+    private final Matrix mInverse = new Matrix();
+    private final float[] mMatrixValues = new float[9];
+    private final float[] mInverseValues = new float[6];
+    private final RectF mTmpRectF = new RectF();
+
+    public IntRasterCanvas(int w, int h) {
+        this(w, h, DEFAULT_TILE_SIZE);
+    }
+
+    public IntRasterCanvas(int w, int h, int tileSize) {
+        mRaster = new IntRaster(w, h, tileSize);
+        final int n = mRaster.getTilesX() * mRaster.getTilesY();
+        mTileBitmaps = new Bitmap[n];
+        mTileBitmapGenerations = new int[n];
+        mUpload = new int[tileSize * tileSize];
+        mUploadBuf = IntBuffer.wrap(mUpload);
+    }
+
+    public IntRaster getRaster() {
+        return mRaster;
+    }
+
+    private static boolean isEraser(Paint paint) {
+        return paint.getXfermode() != null;
+    }
+
+    @Override
+    public void drawRect(float l, float t, float r, float b, Paint paint) {
+        mRaster.fillRect(l, t, r, b, paint.getColor(), isEraser(paint));
+    }
+
+    @Override
+    public void drawCircle(float x, float y, float r, Paint paint) {
+        mRaster.fillCircle(x, y, r, paint.getColor(), isEraser(paint));
+    }
+
+    @Override
+    public void drawColor(int color, PorterDuff.Mode mode) {
+        if (mode == PorterDuff.Mode.CLEAR) {
+            mRaster.fill(Color.TRANSPARENT, true);
+        } else {
+            // everything else is treated as SRC_OVER
+            mRaster.fill(color, mode == PorterDuff.Mode.SRC);
+        }
+    }
+
+    @Override
+    public void drawBitmap(Bitmap bitmap, Rect src, RectF dst, Paint paint) {
+        final int w = bitmap.getWidth();
+        final int[] alpha = getMaskAlpha(bitmap);
+        if (src == null) {
+            mRaster.fillMask(alpha, w, 0, 0, w, bitmap.getHeight(),
+                    dst.left, dst.top, dst.right, dst.bottom, paint.getColor(), isEraser(paint));
+        } else {
+            mRaster.fillMask(alpha, w, src.left, src.top, src.right, src.bottom,
+                    dst.left, dst.top, dst.right, dst.bottom, paint.getColor(), isEraser(paint));
+        }
+    }
+
+    @Override
+    public void drawBitmap(Bitmap bitmap, float left, float top, Paint paint) {
+        final int w = bitmap.getWidth(), h = bitmap.getHeight();
+        mRaster.fillMask(getMaskAlpha(bitmap), w, 0, 0, w, h, left, top, left + w, top + h,
+                paint.getColor(), isEraser(paint));
+    }
+
+    private int[] getMaskAlpha(Bitmap bitmap) {
+        int[] alpha = mMasks.get(bitmap);
+        if (alpha == null) {
+            final int w = bitmap.getWidth(), h = bitmap.getHeight();
+            alpha = new int[w * h];
+            bitmap.getPixels(alpha, 0, w, 0, 0, w, h);
+            for (int i=0; i<alpha.length; i++) {
+                alpha[i] = alpha[i] >>> 24;
+            }
+            mMasks.put(bitmap, alpha);
+        }
+        return alpha;
+    }
+
+    @Override
+    public void drawBitmap(Bitmap bitmap, Matrix matrix, Paint paint) {
+        if (!matrix.invert(mInverse)) return;
+        final int w = bitmap.getWidth(), h = bitmap.getHeight();
+        final int[] pixels = new int[w * h];
+        bitmap.getPixels(pixels, 0, w, 0, 0, w, h);
+        mInverse.getValues(mMatrixValues);
+        System.arraycopy(mMatrixValues, 0, mInverseValues, 0, 6);
+        final RectF dst = mTmpRectF;
+        dst.set(0, 0, w, h);
+        matrix.mapRect(dst);
+        mRaster.drawImage(pixels, w, h, mInverseValues, dst.left, dst.top, dst.right, dst.bottom,
+                (paint != null) ? paint.getAlpha() : 0xFF);
+    }
+
+    @Override
+    public void drawTo(Canvas drawCanvas, float left, float top, Paint paint, boolean dirtyOnly) {
+        drawTo(drawCanvas, left, top, paint, dirtyOnly, null);
+    }
+
+    @Override
+    public void drawTo(Canvas drawCanvas, float left, float top, Paint paint, boolean dirtyOnly,
+            RectF visible) {
+        final int size = mRaster.getTileSize();
+        final int tilesX = mRaster.getTilesX(), tilesY = mRaster.getTilesY();
+        int tilel = 0, tilet = 0, tiler = tilesX - 1, tileb = tilesY - 1;
+        if (visible != null) {
+            tilel = Math.max(tilel, (int) Math.floor(visible.left / size));
+            tilet = Math.max(tilet, (int) Math.floor(visible.top / size));
+            tiler = Math.min(tiler, (int) Math.floor(visible.right / size));
+            tileb = Math.min(tileb, (int) Math.floor(visible.bottom / size));
+        }
+        drawCanvas.save();
+        drawCanvas.translate(-left, -top);
+        drawCanvas.clipRect(0, 0, getWidth(), getHeight());
+        for (int j=tilet; j<=tileb; j++) {
+            for (int i=tilel; i<=tiler; i++) {
+                final int p = j * tilesX + i;
+                final int generation = mRaster.getTileGeneration(i, j);
+                final boolean changed = (mTileBitmaps[p] == null
+                        || mTileBitmapGenerations[p] != generation);
+                if (dirtyOnly && !changed) continue;
+                final int[] tile = mRaster.getTile(i, j);
+                if (tile == null) {
+                    mTileBitmapGenerations[p] = generation;
+                    continue;
+                }
+                if (changed) upload(p, tile, generation);
+                mTileDst.set(i * size, j * size, (i + 1) * size, (j + 1) * size);
+                drawCanvas.drawBitmap(mTileBitmaps[p], null, mTileDst, paint);
+            }
+        }
+        drawCanvas.restore();
+    }
+
+    // Copies a tile into its bitmap, in the bitmap's own (premultiplied, RGBA in memory) format.
+    private void upload(int p, int[] tile, int generation) {
+        final int size = mRaster.getTileSize();
+        if (mTileBitmaps[p] == null) {
+            mTileBitmaps[p] = Bitmap.createBitmap(size, size, mConfig);
+            if (mTileBitmaps[p] == null) return;
+        }
+        for (int k=0; k<tile.length; k++) {
+            final int c = tile[k];
+            mUpload[k] = mLittleEndian
+                    ? (c & 0xFF00FF00) | ((c >> 16) & 0xFF) | ((c & 0xFF) << 16)
+                    : (c << 8) | (c >>> 24);
+        }
+        mUploadBuf.rewind();
+        mTileBitmaps[p].copyPixelsFromBuffer(mUploadBuf);
+        mTileBitmapGenerations[p] = generation;
+    }
+
+    @Override
+    public Bitmap toBitmap() {
+        final Bitmap bitmap = Bitmap.createBitmap(getWidth(), getHeight(), mConfig);
+        drawTo(new Canvas(bitmap), 0, 0, null, false);
+        return bitmap;
+    }
+
+    @Override
+    public void recycleBitmaps() {
+        for (int i=0; i<mTileBitmaps.length; i++) {
+            if (mTileBitmaps[i] != null) {
+                mTileBitmaps[i].recycle();
+                mTileBitmaps[i] = null;
+            }
+        }
+        mMasks.clear();
+    }
+
+    @Override
+    public int getWidth() {
+        return mRaster.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mRaster.getHeight();
+    }
+}
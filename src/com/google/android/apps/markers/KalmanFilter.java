@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.markers;
+
+// A constant-velocity Kalman filter on each axis: the state is position and velocity, the pen
+// is assumed to accelerate randomly (with variance mAccelVar), and each sample measures the
+// position with variance mNoiseVar. It tracks steady motion with very little lag. Pressure and
+// size pass straight through.
+public class KalmanFilter implements StrokeFilter {
+    private final float mAccelVar; // (units/sec^2)^2
+    private final float mNoiseVar; // units^2
+    private final SpotFilter.Plotter mPlotter;
+
+    private final Axis mX = new Axis(), mY = new Axis();
+    private boolean mPrimed;
+    private long mLastTime;
+    private final Spot mLast = new Spot(); // raw
+    private final Spot tmpSpot = new Spot();
+
+    // state (p, v) and its covariance [[p00, p01], [p01, p11]]
+    private static final class Axis {
+        float p, v;
+        float p00, p01, p11;
+
+        void reset(float z, float noiseVar) {
+            p = z;
+            v = 0;
+            p00 = noiseVar;
+            p01 = 0;
+            p11 = 1e6f; // no idea how fast it's going yet
+        }
+
+        float update(float z, float dt, float accelVar, float noiseVar) {
+            // predict
+            p += v * dt;
+            final float dt2 = dt * dt;
+            p00 += dt * (2 * p01 + dt * p11) + accelVar * dt2 * dt2 / 4;
+            p01 += dt * p11 + accelVar * dt2 * dt / 2;
+            p11 += accelVar * dt2;
+
+            // correct
+            final float s = p00 + noiseVar;
+            final float k0 = p00 / s, k1 = p01 / s;
+            final float y = z - p;
+            p += k0 * y;
+            v += k1 * y;
+            p11 -= k1 * p01;
+            p01 -= k1 * p00;
+            p00 -= k0 * p00;
+            return p;
+        }
+    }
+
+    public KalmanFilter(float accelVar, float noiseVar, SpotFilter.Plotter plotter) {
+        mAccelVar = accelVar;
+        mNoiseVar = noiseVar;
+        mPlotter = plotter;
+    }
+
+    @Override
+    public void add(Spot s) {
+        add(s.x, s.y, s.size, s.pressure, s.time, s.tool);
+    }
+
+    @Override
+    public void add(float x, float y, float size, float pressure, long time, int tool) {
+        if (!mPrimed) {
+            mX.reset(x, mNoiseVar);
+            mY.reset(y, mNoiseVar);
+            mPrimed = true;
+            tmpSpot.update(x, y, size, pressure, time, tool);
+        } else {
+            final float dt = Math.max(1, time - mLastTime) / 1000f;
+            tmpSpot.update(mX.update(x, dt, mAccelVar, mNoiseVar),
+                    mY.update(y, dt, mAccelVar, mNoiseVar),
+                    size, pressure, time, tool);
+        }
+        mLastTime = time;
+        mLast.update(x, y, size, pressure, time, tool);
+        mPlotter.plot(tmpSpot);
+    }
+
+    @Override
+    public void finish() {
+        // catch up to where the pen left off
+        if (mPrimed && (tmpSpot.x != mLast.x || tmpSpot.y != mLast.y)) {
+            mPlotter.plot(mLast);
+        }
+        mPrimed = false;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.markers;
+
+// A function sampled at evenly spaced points over [min, max] and linearly interpolated, for
+// curves that would otherwise cost a Math.pow() or a Math.sqrt() on every stamp. Outside that
+// range (or for NaN) it just calls the function. Immutable, so one can be swapped in for another
+// while some other thread is using it.
+final class LookupTable {
+    interface Function {
+        float apply(float x);
+    }
+
+    private final Function mFunction;
+    private final float[] mValues;
+    private final float mMin, mMax, mScale;
+
+    // intervals: how many pieces to cut [min, max] into
+    LookupTable(Function f, float min, float max, int intervals) {
+        mFunction = f;
+        mMin = min;
+        mMax = max;
+        mScale = intervals / (max - min);
+        mValues = new float[intervals + 1];
+        for (int i=0; i<=intervals; i++) {
+            mValues[i] = f.apply(min + (max - min) * i / intervals);
+        }
+    }
+
+    float get(float x) {
+        if (!(x >= mMin && x <= mMax)) return mFunction.apply(x);
+        final float i = (x - mMin) * mScale;
+        final int k = (int) i;
+        if (k >= mValues.length - 1) return mValues[mValues.length - 1];
+        return mValues[k] + (mValues[k+1] - mValues[k]) * (i - k);
+    }
+}
@@ -20,7 +20,6 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -87,6 +86,7 @@ public class MarkersActivity extends Activity
     private boolean mJustLoadedImage = false;
 
     private Slate mSlate;
+    private boolean mSlateRetained; // handed to the next instance of this activity
     private ZoomTouchView mZoomView;
 
     private ToolButton mLastTool, mActiveTool;
@@ -167,6 +167,7 @@ public class MarkersActivity extends Activity
     @Override
     public Object onRetainNonConfigurationInstance() {
     	((ViewGroup)mSlate.getParent()).removeView(mSlate);
+        mSlateRetained = true;
         return mSlate;
     }
     
@@ -260,6 +261,23 @@ public class MarkersActivity extends Activity
                        // so we can draw through it quickly
 
         mDebugButton = findViewById(R.id.debug);
+        mDebugButton.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                if (mSlate.getDebugFlags() == 0) return false; // debug mode only
+                runStrokeBenchmark();
+                return true;
+            }
+        });
+
+        // long-press undo to redo
+        findViewById(R.id.undo).setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                mSlate.redo();
+                return true;
+            }
+        });
 
         TextView title = (TextView) mActionBarView.findViewById(R.id.logotype);
         Typeface light = Typeface.create("sans-serif-light", Typeface.NORMAL);
@@ -470,6 +488,14 @@ public class MarkersActivity extends Activity
         super.onStop();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // unless the next activity is taking it over, let go of the canvas (and its history
+        // spill file and helper thread) now
+        if (!mSlateRetained) mSlate.recycle();
+    }
+
     private String dumpBundle(Bundle b) {
         if (b == null) return "null";
         StringBuilder sb = new StringBuilder("Bundle{");
@@ -689,11 +715,13 @@ public class MarkersActivity extends Activity
     }
 
     public void saveDrawing(String filename, boolean temporary, boolean animate, boolean share, boolean clear) {
-        final Bitmap localBits = mSlate.copyBitmap(/*withBackground=*/!temporary);
-        if (localBits == null) {
+        // the pixels are read on the background thread, straight out of the canvas's tiles
+        final TiledBitmapCanvas.Snapshot snapshot = mSlate.snapshot();
+        if (snapshot == null) {
             if (DEBUG) Log.e(TAG, "save: null bitmap");
             return;
         }
+        final int background = temporary ? Color.TRANSPARENT : mSlate.getDrawingBackground();
         
         final String _filename = filename;
         final boolean _temporary = temporary;
@@ -721,14 +749,20 @@ public class MarkersActivity extends Activity
                     }
                     File file = new File(d, _filename);
                     if (DEBUG) Log.d(TAG, "save: saving " + file);
-                    OutputStream os = new FileOutputStream(file);
-                    localBits.compress(Bitmap.CompressFormat.PNG, 0, os);
-                    localBits.recycle();
-                    os.close();
+                    // a strip of tiles at a time; there's never a full-size bitmap
+                    FileOutputStream os = new FileOutputStream(file);
+                    try {
+                        PngWriter.write(PngWriter.fromSnapshot(snapshot, background),
+                                os.getChannel());
+                    } finally {
+                        os.close();
+                    }
                     
                     fn = file.toString();
                 } catch (IOException e) {
                     Log.e(TAG, "save: error: " + e);
+                } finally {
+                    snapshot.release();
                 }
                 return fn;
             }
@@ -810,6 +844,23 @@ public class MarkersActivity extends Activity
             Toast.LENGTH_SHORT).show();
     }
 
+    private void runStrokeBenchmark() {
+        hideOverflow();
+        Toast.makeText(this, "Running stroke benchmark...", Toast.LENGTH_SHORT).show();
+        final float[] recording = mSlate.copyRecordedStrokes();
+        new AsyncTask<Void,Void,String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                return mSlate.runStrokeBenchmark(recording);
+            }
+
+            @Override
+            protected void onPostExecute(String report) {
+                Toast.makeText(MarkersActivity.this, report, Toast.LENGTH_LONG).show();
+            }
+        }.execute();
+    }
+
     public void clickUndo(View unused) {
         mSlate.undo();
     }
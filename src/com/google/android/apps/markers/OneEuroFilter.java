@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.markers;
+
+// The "One Euro filter" (Casiez, Roussel & Vogel, CHI 2012): a low-pass filter whose cutoff
+// rises with speed, so that a slow pen is steady and a fast one doesn't lag. Position uses the
+// speed of the pen along its path; pressure and size each adapt to their own rate of change.
+public class OneEuroFilter implements StrokeFilter {
+    private final float mMinCutoff; // Hz, at rest
+    private final float mBeta;      // extra Hz per unit/sec of speed
+    private final float mDerivCutoff;
+    private final SpotFilter.Plotter mPlotter;
+
+    private final LowPass mX = new LowPass(), mY = new LowPass();
+    private final LowPass mPressure = new LowPass(), mSize = new LowPass();
+    private final LowPass mSpeed = new LowPass();
+    private final LowPass mPressureRate = new LowPass(), mSizeRate = new LowPass();
+    private long mLastTime;
+    private final Spot mLast = new Spot(); // raw
+    private final Spot tmpSpot = new Spot();
+
+    private static final class LowPass {
+        boolean primed;
+        float value;
+
+        float filter(float v, float alpha) {
+            value = primed ? value + alpha * (v - value) : v;
+            primed = true;
+            return value;
+        }
+    }
+
+    public OneEuroFilter(float minCutoff, float beta, float derivCutoff,
+            SpotFilter.Plotter plotter) {
+        mMinCutoff = minCutoff;
+        mBeta = beta;
+        mDerivCutoff = derivCutoff;
+        mPlotter = plotter;
+    }
+
+    private static float alpha(float cutoff, float dt) {
+        final float tau = 1f / (2 * (float) Math.PI * cutoff);
+        return 1f / (1f + tau / dt);
+    }
+
+    private float adaptive(LowPass value, LowPass rate, float v, float dt) {
+        final float r = rate.filter(value.primed ? (v - value.value) / dt : 0,
+                alpha(mDerivCutoff, dt));
+        return value.filter(v, alpha(mMinCutoff + mBeta * Math.abs(r), dt));
+    }
+
+    @Override
+    public void add(Spot s) {
+        add(s.x, s.y, s.size, s.pressure, s.time, s.tool);
+    }
+
+    @Override
+    public void add(float x, float y, float size, float pressure, long time, int tool) {
+        // a repeated timestamp would mean infinite speed
+        final float dt = (mX.primed ? Math.max(1, time - mLastTime) : 1) / 1000f;
+        mLastTime = time;
+
+        float speed = 0;
+        if (mX.primed) {
+            final float dx = x - mX.value, dy = y - mY.value;
+            speed = (float) Math.sqrt(dx*dx + dy*dy) / dt;
+        }
+        final float cutoff = mMinCutoff
+                + mBeta * mSpeed.filter(speed, alpha(mDerivCutoff, dt));
+        final float a = alpha(cutoff, dt);
+
+        tmpSpot.update(mX.filter(x, a), mY.filter(y, a),
+                adaptive(mSize, mSizeRate, size, dt),
+                adaptive(mPressure, mPressureRate, pressure, dt),
+                time, tool);
+        mLast.update(x, y, size, pressure, time, tool);
+        mPlotter.plot(tmpSpot);
+    }
+
+    @Override
+    public void finish() {
+        // catch up to where the pen left off
+        if (mX.primed && (tmpSpot.x != mLast.x || tmpSpot.y != mLast.y)) {
+            mPlotter.plot(mLast);
+        }
+        mX.primed = mY.primed = mPressure.primed = mSize.primed = false;
+        mSpeed.primed = mPressureRate.primed = mSizeRate.primed = false;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.markers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Build;
+
+// Writes an RGBA PNG a strip of rows at a time, so that only one strip is ever in memory, rather
+// than going through a whole-picture Bitmap and Bitmap.compress().
+//
+// Each strip is split into bands of rows that are filtered and deflated on separate threads (see
+// TiledBitmapCanvas.forEachBand), each into its own raw deflate stream ending in a sync flush;
+// strung together, after one zlib header and followed by the Adler-32 of everything, they make a
+// single valid zlib stream. Sync flushes need KitKat; before that there's one stream, deflated
+// in order.
+public class PngWriter {
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+    private static final int DEFLATE_LEVEL = Deflater.DEFAULT_COMPRESSION;
+    private static final byte[] ZLIB_HEADER = { 0x78, (byte) 0x9C }; // deflate, default level
+    private static final int FILTER_UP = 2; // each byte minus the one above it
+    private static final int MIN_BAND_ROWS = 16; // not worth a thread below this
+    private static final int OUTPUT_BUFFER = 64 * 1024;
+
+    // Where the pixels come from.
+    public interface Source {
+        int getWidth();
+        int getHeight();
+        int getStripHeight();
+        // Fills pixels with rows [y, y + rows), unpremultiplied 0xAARRGGBB, width to a row.
+        void readStrip(int y, int rows, int[] pixels);
+    }
+
+    // A snapshot composited over bgcolor, read through a one-strip bitmap.
+    public static Source fromSnapshot(final TiledBitmapCanvas.Snapshot snapshot,
+            final int bgcolor) {
+        return new Source() {
+            private Bitmap mStrip;
+            private Canvas mCanvas;
+
+            @Override
+            public int getWidth() {
+                return snapshot.getWidth();
+            }
+
+            @Override
+            public int getHeight() {
+                return snapshot.getHeight();
+            }
+
+            @Override
+            public int getStripHeight() {
+                return snapshot.getTileSize();
+            }
+
+            @Override
+            public void readStrip(int y, int rows, int[] pixels) {
+                final int w = getWidth();
+                if (mStrip == null) {
+                    mStrip = Bitmap.createBitmap(w, getStripHeight(), Bitmap.Config.ARGB_8888);
+                    if (mStrip == null) throw new OutOfMemoryError("PngWriter: no strip bitmap");
+                    mCanvas = new Canvas(mStrip);
+                }
+                mStrip.eraseColor(bgcolor);
+                snapshot.drawRows(mCanvas, y, y + rows);
+                mStrip.getPixels(pixels, 0, w, 0, 0, w, rows);
+            }
+        };
+    }
+
+    private final WritableByteChannel mOut;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(OUTPUT_BUFFER);
+    private final CRC32 mCrc = new CRC32();
+    private final Adler32 mAdler = new Adler32();
+
+    private PngWriter(WritableByteChannel out) {
+        mOut = out;
+    }
+
+    // Writes the whole image to out. Doesn't close it.
+    public static void write(Source src, WritableByteChannel out) throws IOException {
+        new PngWriter(out).writeImage(src, Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT);
+    }
+
+    private void writeImage(Source src, boolean parallel) throws IOException {
+        final int w = src.getWidth(), h = src.getHeight();
+        final int stripHeight = src.getStripHeight();
+        final int stride = 1 + 4 * w; // filter byte, then RGBA
+        final int[] pixels = new int[w * stripHeight];
+        final int[] above = new int[w]; // the last row of the previous strip; zeros at first
+        final byte[] raw = new byte[stride * stripHeight];
+
+        mBuffer.put(SIGNATURE);
+        final byte[] ihdr = new byte[13];
+        putInt(ihdr, 0, w);
+        putInt(ihdr, 4, h);
+        ihdr[8] = 8; // bits per channel
+        ihdr[9] = 6; // RGBA
+        writeChunk("IHDR", ihdr, 0, ihdr.length);
+        writeChunk("IDAT", ZLIB_HEADER, 0, ZLIB_HEADER.length);
+
+        final Deflater serial = parallel ? null : new Deflater(DEFLATE_LEVEL, true);
+        byte[] compressed = new byte[raw.length / 4 + 64];
+        try {
+            for (int y = 0; y < h; y += stripHeight) {
+                final int rows = Math.min(stripHeight, h - y);
+                final boolean last = (y + rows == h);
+                src.readStrip(y, rows, pixels);
+                if (parallel) {
+                    writeBands(pixels, above, raw, w, rows, last);
+                } else {
+                    filterRows(pixels, above, raw, w, 0, rows);
+                    final int n = rows * stride;
+                    serial.setInput(raw, 0, n);
+                    if (last) serial.finish();
+                    while (last ? !serial.finished() : !serial.needsInput()) {
+                        final int k = serial.deflate(compressed);
+                        if (k > 0) writeChunk("IDAT", compressed, 0, k);
+                    }
+                }
+                mAdler.update(raw, 0, rows * stride);
+                System.arraycopy(pixels, (rows - 1) * w, above, 0, w);
+            }
+        } finally {
+            if (serial != null) serial.end();
+        }
+
+        final byte[] adler = new byte[4];
+        putInt(adler, 0, (int) mAdler.getValue());
+        writeChunk("IDAT", adler, 0, adler.length);
+        writeChunk("IEND", adler, 0, 0);
+        flush();
+    }
+
+    // Filters and deflates a strip in bands, in parallel, and writes them out in order.
+    private void writeBands(final int[] pixels, final int[] above, final byte[] raw,
+            final int w, int rows, final boolean lastStrip) throws IOException {
+        final int stride = 1 + 4 * w;
+        final byte[][] out = new byte[rows][]; // compressed band starting at each row
+        final int[] outLength = new int[rows];
+        final int end = rows;
+        TiledBitmapCanvas.BandOp op = new TiledBitmapCanvas.BandOp() {
+            @Override
+            public void run(int from, int to) {
+                filterRows(pixels, above, raw, w, from, to);
+                out[from] = deflate(raw, from * stride, (to - from) * stride,
+                        lastStrip && to == end, outLength, from);
+            }
+        };
+        if (rows < 2 * MIN_BAND_ROWS) {
+            op.run(0, rows);
+        } else {
+            TiledBitmapCanvas.forEachBand(0, rows, op);
+        }
+        for (int i = 0; i < rows; i++) {
+            if (out[i] != null) writeChunk("IDAT", out[i], 0, outLength[i]);
+        }
+    }
+
+    // Deflates one band into its own raw stream, ending in a sync flush (so that the next band
+    // can follow right on), or finished if it's the end of the picture.
+    @SuppressLint("NewApi")
+    private static byte[] deflate(byte[] in, int off, int len, boolean last,
+            int[] outLength, int slot) {
+        final Deflater d = new Deflater(DEFLATE_LEVEL, true);
+        try {
+            d.setInput(in, off, len);
+            if (last) d.finish();
+            byte[] out = new byte[len / 4 + 64];
+            int n = 0;
+            while (true) {
+                if (n == out.length) {
+                    final byte[] bigger = new byte[out.length * 2];
+                    System.arraycopy(out, 0, bigger, 0, n);
+                    out = bigger;
+                }
+                final int room = out.length - n;
+                final int k = last
+                        ? d.deflate(out, n, room)
+                        : d.deflate(out, n, room, Deflater.SYNC_FLUSH);
+                n += k;
+                // a sync flush is done once it stops filling the buffer
+                if (last ? d.finished() : k < room) break;
+            }
+            outLength[slot] = n;
+            return out;
+        } finally {
+            d.end();
+        }
+    }
+
+    // Writes rows [from, to) of the strip into raw, with the Up filter. The row above the first
+    // one of a strip is in above.
+    private static void filterRows(int[] pixels, int[] above, byte[] raw, int w,
+            int from, int to) {
+        final int stride = 1 + 4 * w;
+        for (int y = from; y < to; y++) {
+            final int[] up = (y == 0) ? above : pixels;
+            final int upOff = (y == 0) ? 0 : (y - 1) * w;
+            int o = y * stride;
+            raw[o++] = FILTER_UP;
+            for (int x = 0, p = y * w; x < w; x++, p++) {
+                final int c = pixels[p], u = up[upOff + x];
+                raw[o++] = (byte) ((c >> 16) - (u >> 16)); // R
+                raw[o++] = (byte) ((c >> 8) - (u >> 8));   // G
+                raw[o++] = (byte) (c - u);                 // B
+                raw[o++] = (byte) ((c >>> 24) - (u >>> 24)); // A
+            }
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int off, int len) throws IOException {
+        mCrc.reset();
+        putRaw(new byte[] {
+                (byte) (len >>> 24), (byte) (len >>> 16), (byte) (len >>> 8), (byte) len }, 0, 4);
+        final byte[] t = new byte[] {
+                (byte) type.charAt(0), (byte) type.charAt(1),
+                (byte) type.charAt(2), (byte) type.charAt(3) };
+        mCrc.update(t);
+        putRaw(t, 0, 4);
+        mCrc.update(data, off, len);
+        putRaw(data, off, len);
+        final byte[] crc = new byte[4];
+        putInt(crc, 0, (int) mCrc.getValue());
+        putRaw(crc, 0, 4);
+    }
+
+    private void putRaw(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!mBuffer.hasRemaining()) flush();
+            final int k = Math.min(len, mBuffer.remaining());
+            mBuffer.put(b, off, k);
+            off += k;
+            len -= k;
+        }
+    }
+
+    private void flush() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) mOut.write(mBuffer);
+        mBuffer.clear();
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+}
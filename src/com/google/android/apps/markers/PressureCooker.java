@@ -56,6 +56,17 @@ class PressureCooker {
         mContext = context;
         loadStats();
     }
+
+    // A scratch copy of other's calibration: it adapts as usual, but never touches the prefs
+    // (see StrokeBenchmark).
+    public PressureCooker(PressureCooker other) {
+        synchronized (other) {
+            mPressureMin = other.mPressureMin;
+            mPressureMax = other.mPressureMax;
+            mPressureCountdownStart = other.mPressureCountdownStart;
+            mPressureUpdateCountdown = other.mPressureUpdateCountdown;
+        }
+    }
     
     public void loadStats() {
         SharedPreferences prefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_WORLD_READABLE);
@@ -68,6 +79,7 @@ class PressureCooker {
     }
 
     public void saveStats() {
+        if (mContext == null) return;
         SharedPreferences prefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_WORLD_READABLE);
         SharedPreferences.Editor prefsE = prefs.edit();
         prefsE.putBoolean(PREF_FIRST_RUN, false);
@@ -79,7 +91,8 @@ class PressureCooker {
     }
     
     // Adjusts pressure values on the fly based on historical maxima/minima.
-    public float getAdjustedPressure(float pressure) {
+    // (Synchronized, since several pointers may be stamped at once; see Slate.PARALLEL_POINTERS.)
+    public synchronized float getAdjustedPressure(float pressure) {
         if (PARTNER_HACK) {
             return pressure; 
         }
@@ -16,7 +16,19 @@
 
 package com.google.android.apps.markers;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import android.annotation.SuppressLint;
 import android.app.ActivityManager;
@@ -41,6 +53,7 @@ import android.graphics.RectF;
 import android.graphics.Region;
 import android.graphics.Region.Op;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.MotionEvent;
@@ -56,7 +69,14 @@ public class Slate extends View {
     public static final boolean HWLAYER = true;
     public static final boolean SWLAYER = false;
     public static final boolean FANCY_INVALIDATES = false; // doesn't work
-    public static final boolean INVALIDATE_ALL_THE_THINGS = true; // invalidate() every frame
+    public static final boolean INVALIDATE_ALL_THE_THINGS = false; // invalidate() every frame
+    public static final boolean INFINITE_CANVAS = false; // pan and draw beyond the screen
+    // draw a guess at where ink is going; off until InkLatency numbers from devices show that
+    // the guess is close enough to be worth the flicker when it's wrong
+    public static final boolean PREDICT_STROKES = false;
+    public static final boolean STAMP_CACHE = true; // pre-scale and tint bitmap stamps
+    public static final boolean RENDER_THREAD = false; // stamp strokes off the UI thread
+    public static final boolean PARALLEL_POINTERS = false; // stamp each finger on its own core
 
     public static final int FLAG_DEBUG_STROKES = 1;
     public static final int FLAG_DEBUG_PRESSURE = 1 << 1;
@@ -72,8 +92,53 @@ public class Slate extends View {
     private static final float SMOOTHING_FILTER_POS_DECAY = 0.65f;
     private static final float SMOOTHING_FILTER_PRESSURE_DECAY = 0.9f;
 
+    // which StrokeFilter smooths each kind of input
+    public static final int FILTER_WINDOWED = 0; // SpotFilter: smoothest, most lag
+    public static final int FILTER_ONE_EURO = 1;
+    public static final int FILTER_KALMAN = 2;
+    public static final int FINGER_FILTER = FILTER_WINDOWED;
+    // SpotFilter lets stylus samples through untouched (see PRECISE_STYLUS_INPUT): a stylus
+    // doesn't need smoothing, and any filter would only add lag. The others are opt-in.
+    public static final int STYLUS_FILTER = FILTER_WINDOWED;
+
+    private static final float ONE_EURO_MIN_CUTOFF = 1.0f; // Hz
+    private static final float ONE_EURO_BETA = 0.05f; // Hz per px/s
+    private static final float ONE_EURO_DERIV_CUTOFF = 1.0f; // Hz
+    private static final float KALMAN_ACCEL_VAR = 1e9f; // (px/s^2)^2
+    private static final float KALMAN_NOISE_VAR = 1.0f; // px^2
+
+    private static final int PREDICTION_SAMPLES = 4; // velocity is measured over this many
+    private static final float PREDICTION_MS = 16f; // about a frame
+    private static final float MAX_PREDICTION_PX = 48f; // on screen
+    private static final float PREDICTION_FRINGE_PX = 1f; // antialiasing past the line's edge
+
+    // stamp spacing: for very narrow lines we must step (not much more than) one pixel at a time
+    private static final float STAMP_SPACING_MIN = 1f;
+    private static final float STAMP_SPACING_THRESH = 16f; // radius
+    private static final float STAMP_SPACING_SLOPE = 0.1f; // asymptote: spacing grows as SLOPE*r
+
+    // resolution and extent of the pressure->radius and radius->spacing tables
+    private static final int CURVE_TABLE_INTERVALS = 256;
+    private static final float CURVE_TABLE_MAX_PRESSURE = 2f; // PressureCooker can overshoot 1
+
+    private static final long STAMP_CACHE_BYTES = 4 * 1024 * 1024;
+
+    private static final int STROKE_QUEUE_SIZE = 1024; // records; a power of two
+    private static final int STROKE_QUEUE_CHUNK = 64; // records stamped per hold of the lock
+
+    private static final int MAX_STROKE_THREADS = 4; // including the UI thread
+
     private static final int FIXED_DIMENSION = 0; // 1024;
 
+    private static final int MAX_UNDO_LEVELS = 100;
+
+    // Undo history that doesn't fit in the heap goes to a file in the cache dir, one per canvas
+    // (an old canvas may still have its file mapped while a new one starts up).
+    private static final String HISTORY_SPILL_PREFIX = "history";
+    private static final String HISTORY_SPILL_SUFFIX = ".spill";
+    private static final long HISTORY_SPILL_BYTES = 64 * 1024 * 1024;
+    private static final int HISTORY_SPILL_HEAP_CANVASES = 3; // heap budget when spilling
+
     private static final float INVALIDATE_PADDING = 4.0f;
     public static final boolean ASSUME_STYLUS_CALIBRATED = true;
     
@@ -94,12 +159,17 @@ public class Slate extends View {
     private float mRadiusMin;
     private float mRadiusMax;
 
+    // rebuilt by buildCurveTables() whenever the above change
+    private LookupTable mRadiusTable; // pressure -> radius
+    private LookupTable mSpacingTable; // radius -> distance to the next stamp
+
     int mDebugFlags = 0;
 
     private TiledBitmapCanvas mTiledCanvas;
     private final Paint mDebugPaints[] = new Paint[10];
     
     private Bitmap mPendingPaintBitmap;
+    private Runnable mPendingPaintDone;
 
 //    private Bitmap mCircleBits;
 //    private Rect mCircleBitsFrame;
@@ -107,20 +177,97 @@ public class Slate extends View {
     private Rect mAirbrushBitsFrame;
     private Bitmap mFountainPenBits;
     private Rect mFountainPenBitsFrame;
+    private final StampCache mStampCache = new StampCache(STAMP_CACHE_BYTES);
         
     private PressureCooker mPressureCooker;
 
+    // in stroke debug mode, keeps the input around for StrokeBenchmark to replay
+    private StrokeBenchmark.Recorder mRecorder;
+
     private boolean mZoomMode;
 
     private boolean mEmpty;
 
     private Region mDirtyRegion = new Region();
 
+    // Unless INVALIDATE_ALL_THE_THINGS, the view keeps its own copy of what's on screen, drawn
+    // with mScreenMatrix; each frame only the tiles drawn on since the last are composited into
+    // it, and the whole copy is blitted.
+    private Bitmap mScreen;
+    private Canvas mScreenCanvas;
+    private boolean mScreenValid;
+    private final Matrix mScreenMatrix = new Matrix();
+
+    private Paint mPredictionPaint;
+    private final InkLatency mInkLatency = new InkLatency();
+
+    // see beginBatch()
+    private boolean mBatching;
+
+    // RENDER_THREAD: touch input goes to mRenderThread through mStrokeQueue; the plotters and
+    // the canvas belong to that thread, except that onDraw() may draw the canvas while holding
+    // mCanvasLock. Dirty areas come back, one per pointer, through mPublishedDirty. The render
+    // thread notifies mQueueDrained after every chunk, for a UI thread waiting on it to make
+    // room in the queue or to empty it.
+    // Off by default until it's been measured on devices: it only pays if stamping, rather
+    // than compositing, is what holds up the UI thread, and every undo, save or zoom has to
+    // wait for the queue to drain first.
+    private StrokeQueue mStrokeQueue;
+    private RenderThread mRenderThread;
+    private final Object mCanvasLock = new Object();
+    private final Object mQueueDrained = new Object();
+    private final RectF[] mPublishedDirty = new RectF[MAX_POINTERS];
+    private boolean mPublishPosted;
+
+    // clear() and paintBitmap() go over every tile, which on a big canvas takes long enough to
+    // drop frames, so they run on sCanvasOpThread (sharing the tiles out with
+    // TiledBitmapCanvas.forEachBand as usual). Until one is done, the canvas belongs to it:
+    // onDraw() shows what was on screen before, touches wait in mHeldEvents, and anything else
+    // that needs the canvas waits for it (see syncRenderThread()).
+    private static ExecutorService sCanvasOpThread;
+    private Future<?> mCanvasOp;
+    private Runnable mCanvasOpDone;
+    private final ArrayList<MotionEvent> mHeldEvents = new ArrayList<MotionEvent>();
+
+    // PARALLEL_POINTERS: during a move, every pointer but the first is stamped on mStrokePool.
+    // Each plotter belongs to one pointer, batch dirty rect and all, and TiledBitmapCanvas locks
+    // the tiles it draws on. Off by default until it's been measured on devices: it only pays
+    // with several fingers down on a multi-core device, and otherwise costs a handoff and a
+    // latch wait per move event, plus a tile lock per stamp.
+    private ThreadPoolExecutor mStrokePool;
+    private final PointerTask[] mPointerTasks = new PointerTask[MAX_POINTERS];
+
     private Paint mBlitPaint;
     private Paint mWorkspacePaint;
     private Matrix mZoomMatrix = new Matrix();
     private Matrix mZoomMatrixInv = new Matrix();
     private float mPanX = 0f, mPanY = 0f;
+
+    // The view transform as of the last pan or zoom, for the plotters: a new one every time,
+    // never changed afterwards, so that a plotter on another thread (see RENDER_THREAD) sees
+    // all of one transform or all of the next, never half of each.
+    private static final class ViewTransform {
+        final float panX, panY, scale;
+        final Matrix zoomInv;
+
+        ViewTransform(float panX, float panY, Matrix zoom, Matrix zoomInv) {
+            this.panX = panX;
+            this.panY = panY;
+            final float[] values = new float[9];
+            zoom.getValues(values);
+            this.scale = values[0]; // see getScale()
+            this.zoomInv = new Matrix(zoomInv);
+        }
+
+        // Maps (x, y) on screen into canvas coordinates, in out.
+        void toCanvas(float x, float y, float[] out) {
+            out[0] = x - panX;
+            out[1] = y - panY;
+            zoomInv.mapPoints(out);
+        }
+    }
+    private volatile ViewTransform mTransform =
+            new ViewTransform(0, 0, mZoomMatrix, mZoomMatrixInv);
     private int mMemClass;
     private boolean mLowMem;
 
@@ -129,21 +276,51 @@ public class Slate extends View {
         void strokeEnded();
     }
 
-    private class MarkersPlotter implements SpotFilter.Plotter {
+    private class MarkersPlotter implements SpotFilter.Plotter, StrokeBenchmark.Pen {
         // Plotter receives pointer coordinates and draws them.
         // It implements the necessary interface to receive filtered Spots from the SpotFilter.
         // It hands off the drawing command to the renderer.
         
-        private SpotFilter mCoordBuffer;
+        private final StrokeFilter mFingerFilter, mStylusFilter;
+        private StrokeFilter mCoordBuffer; // for the stroke in progress
         private SmoothStroker mRenderer;
         
         private float mLastPressure = -1f;
         private int mLastTool = 0;
         final float[] mTmpPoint = new float[2];
 
+        // if set, draw here (in canvas coordinates) instead of on the slate
+        private final CanvasLite mTarget;
+        // if set, calibrate pressure with this instead of mPressureCooker
+        private final PressureCooker mCooker;
+
+        // recent raw input in canvas coordinates, newest at mHistHead, for PREDICT_STROKES
+        private final float[] mHistX = new float[PREDICTION_SAMPLES];
+        private final float[] mHistY = new float[PREDICTION_SAMPLES];
+        private final long[] mHistTime = new long[PREDICTION_SAMPLES];
+        private int mHistHead, mHistCount;
+        // the predicted segment runs from the end of the real ink to here
+        private boolean mPredicting;
+        private float mPredictX, mPredictY;
+        private float mVelX, mVelY; // per ms
+        private final RectF mPredictBounds = new RectF();
+        private final RectF mPredictDirty = new RectF();
+
+        private final Spot mBatchSpot = new Spot();
+        // what this pointer has touched since beginBatch()
+        private final RectF mBatchDirty = new RectF();
+
         public MarkersPlotter() {
-            mCoordBuffer = new SpotFilter(SMOOTHING_FILTER_WLEN, SMOOTHING_FILTER_POS_DECAY, SMOOTHING_FILTER_PRESSURE_DECAY, this);
+            this(null, null);
+        }
+
+        public MarkersPlotter(CanvasLite target, PressureCooker cooker) {
+            mFingerFilter = newStrokeFilter(FINGER_FILTER, this);
+            mStylusFilter = (STYLUS_FILTER == FINGER_FILTER)
+                    ? mFingerFilter : newStrokeFilter(STYLUS_FILTER, this);
             mRenderer = new SmoothStroker();
+            mTarget = target;
+            mCooker = cooker;
         }
 
 //        final Rect tmpDirtyRect = new Rect();
@@ -154,15 +331,19 @@ public class Slate extends View {
             if (ASSUME_STYLUS_CALIBRATED && s.tool == MotionEvent.TOOL_TYPE_STYLUS) {
                 pressureNorm = s.pressure;
             } else {
-                pressureNorm = mPressureCooker.getAdjustedPressure(s.pressure);
+                pressureNorm = ((mCooker != null) ? mCooker : mPressureCooker)
+                        .getAdjustedPressure(s.pressure);
             }
 
-            final float radius = lerp(mRadiusMin, mRadiusMax,
-                    (float) Math.pow(pressureNorm, mPressureExponent));
+            final float radius = mRadiusTable.get(pressureNorm);
+
+            if (mTarget != null) {
+                // offscreen: no view transform, nothing to invalidate
+                mRenderer.strokeTo(mTarget, s.x, s.y, radius);
+                return;
+            }
 
-            mTmpPoint[0] = s.x - mPanX;
-            mTmpPoint[1] = s.y - mPanY;
-            mZoomMatrixInv.mapPoints(mTmpPoint);
+            mTransform.toCanvas(s.x, s.y, mTmpPoint);
             
             final RectF dirtyF = mRenderer.strokeTo(mTiledCanvas,
                     mTmpPoint[0],
@@ -178,8 +359,17 @@ public class Slate extends View {
         }
         
         public void finish(long time) {
+            if (mTarget == null && mRecorder != null) mRecorder.endStroke();
             mLastPressure = -1f;
-            mCoordBuffer.finish();
+            if (mCoordBuffer != null) {
+                mCoordBuffer.finish();
+                mCoordBuffer = null;
+            }
+            if (mPredicting) {
+                mPredicting = false;
+                dirty(mPredictBounds); // take it off the screen
+            }
+            mHistCount = 0;
             mRenderer.reset();
         }
 
@@ -189,9 +379,95 @@ public class Slate extends View {
 //        }
         
         public void add(Spot s) {
+            if (mTarget == null && mRecorder != null) mRecorder.add(s);
+            if (mCoordBuffer == null) {
+                mCoordBuffer = (s.tool == MotionEvent.TOOL_TYPE_STYLUS)
+                        ? mStylusFilter : mFingerFilter;
+            }
             mCoordBuffer.add(s);
             mLastPressure = s.pressure;
             mLastTool = s.tool;
+            if (PREDICT_STROKES && mTarget == null) predict(s);
+        }
+
+        // Adds pointer j's whole run of samples from a move event: its history, then where it
+        // is now.
+        public void addAll(MotionEvent event, int j, int tool) {
+            final Spot s = mBatchSpot;
+            final int N = event.getHistorySize();
+            for (int i = 0; i < N; i++) {
+                final float size = event.getHistoricalSize(j, i);
+                s.update(event.getHistoricalX(j, i), event.getHistoricalY(j, i), size,
+                        event.getHistoricalPressure(j, i) + size,
+                        event.getHistoricalEventTime(i), tool);
+                add(s);
+            }
+            final float size = event.getSize(j);
+            s.update(event.getX(j), event.getY(j), size, event.getPressure(j) + size,
+                    event.getEventTime(), tool);
+            add(s);
+        }
+
+        // Extrapolates the raw input PREDICTION_MS ahead at its recent velocity, and invalidates
+        // both the old and the new predicted segments. Nothing is drawn into the canvas; see
+        // drawPrediction(). Only round pens are predicted, since the guess is drawn as a
+        // round-capped line.
+        private void predict(Spot s) {
+            final ViewTransform transform = mTransform; // one for the whole guess
+            transform.toCanvas(s.x, s.y, mTmpPoint);
+            if (++mHistHead == PREDICTION_SAMPLES) mHistHead = 0;
+            if (mHistCount < PREDICTION_SAMPLES) mHistCount++;
+            mHistX[mHistHead] = mTmpPoint[0];
+            mHistY[mHistHead] = mTmpPoint[1];
+            mHistTime[mHistHead] = s.time;
+
+            final RectF dirty = mPredictDirty;
+            if (mPredicting) {
+                dirty.set(mPredictBounds);
+            } else {
+                dirty.setEmpty();
+            }
+            mPredicting = false;
+
+            int oldest = mHistHead - (mHistCount - 1);
+            if (oldest < 0) oldest += PREDICTION_SAMPLES;
+            final long dt = mHistTime[mHistHead] - mHistTime[oldest];
+            final float r = mRenderer.getRadius() + PREDICTION_FRINGE_PX;
+            if (dt > 0 && mRenderer.getRadius() >= 0 && mRenderer.getPenColor() != 0
+                    && mRenderer.mShape == SHAPE_CIRCLE) {
+                mVelX = (mHistX[mHistHead] - mHistX[oldest]) / dt;
+                mVelY = (mHistY[mHistHead] - mHistY[oldest]) / dt;
+                float ex = mVelX * PREDICTION_MS, ey = mVelY * PREDICTION_MS;
+                final float len = (float) Math.sqrt(ex*ex + ey*ey);
+                final float max = MAX_PREDICTION_PX / transform.scale;
+                if (len > max) {
+                    ex *= max / len;
+                    ey *= max / len;
+                }
+                mPredictX = mHistX[mHistHead] + ex;
+                mPredictY = mHistY[mHistHead] + ey;
+                final float x0 = mRenderer.getLastX(), y0 = mRenderer.getLastY();
+                mPredictBounds.set(Math.min(x0, mPredictX) - r, Math.min(y0, mPredictY) - r,
+                        Math.max(x0, mPredictX) + r, Math.max(y0, mPredictY) + r);
+                mPredicting = true;
+                dirty.union(mPredictBounds);
+            }
+            if (!dirty.isEmpty()) dirty(dirty);
+        }
+
+        // Draws the predicted segment, if any, in canvas coordinates, as a plain line from the
+        // end of the real ink.
+        public void drawPrediction(Canvas c, Paint paint) {
+            if (!mPredicting || mRenderer.mShape != SHAPE_CIRCLE) return;
+            paint.setColor(mRenderer.getPenColor());
+            paint.setAlpha(mRenderer.mInkDensity);
+            paint.setStrokeWidth(mRenderer.getRadius() * 2);
+            c.drawLine(mRenderer.getLastX(), mRenderer.getLastY(), mPredictX, mPredictY, paint);
+            if (0 != (mDebugFlags & FLAG_DEBUG_STROKES)) {
+                mInkLatency.record(mRenderer.getLastX(), mRenderer.getLastY(),
+                        mPredictX, mPredictY, mHistX[mHistHead], mHistY[mHistHead],
+                        SystemClock.uptimeMillis() - mHistTime[mHistHead], mVelX, mVelY);
+            }
         }
         
 //        public float getRadius() {
@@ -209,6 +485,15 @@ public class Slate extends View {
         public void setPenType(int shape) {
             mRenderer.setPenType(shape);
         }
+
+        // Stroke drawing calls this for everything it touches (in canvas coordinates).
+        private void dirty(RectF r) {
+            if (mBatching) {
+                mBatchDirty.union(r);
+                return;
+            }
+            invalidateCanvas(r);
+        }
     }
     
     private class SmoothStroker {
@@ -226,6 +511,8 @@ public class Slate extends View {
         private PathMeasure mWorkPathMeasure = new PathMeasure();
         
         private Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        // for stamps out of mStampCache, which are already tinted
+        private Paint mStampPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         
         int mInkDensity = 0xff; // set to 0x20 or so for a felt-tip look, 0xff for traditional Markers
         
@@ -238,15 +525,23 @@ public class Slate extends View {
                 // eraser: DST_OUT
                 mPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OUT));
                 mPaint.setColor(Color.BLACK);
+                mStampPaint.setXfermode(mPaint.getXfermode());
+                mStampPaint.setColor(Color.BLACK);
             } else {
                 mPaint.setXfermode(null);
                 
-                //mPaint.setColor(color); 
-                mPaint.setColor(Color.BLACK); // or collor? or color & (mInkDensity << 24)?
+                // The color filter below is what actually colors the ink (bitmap stamps
+                // included); the paint's own color only contributes its alpha to Skia, but
+                // it's the whole story for an IntRasterCanvas.
+                mPaint.setColor(color);
                 mPaint.setAlpha(mInkDensity);
                 
 //                mPaint.setColorFilter(new PorterDuffColorFilter(color, PorterDuff.Mode.SRC_IN));
                 mPaint.setColorFilter(new PorterDuffColorFilter(color, PorterDuff.Mode.SRC_ATOP));
+
+                mStampPaint.setXfermode(null);
+                mStampPaint.setColor(color);
+                mStampPaint.setAlpha(mInkDensity);
             }
         }
 
@@ -309,18 +604,16 @@ public class Slate extends View {
 //                c.drawBitmap(mCircleBits, mCircleBitsFrame, tmpRF, mPaint);
 //                break;
             case SHAPE_BITMAP_AIRBRUSH:
-                tmpRF.set(x-r,y-r,x+r,y+r);
                 if (mAirbrushBits == null || mAirbrushBitsFrame == null) {
                     throw new RuntimeException("Slate.drawStrokePoint: no airbrush bitmap - frame=" + mAirbrushBitsFrame);
                 }
-                c.drawBitmap(mAirbrushBits, mAirbrushBitsFrame, tmpRF, mPaint);
+                drawBitmapStamp(c, mAirbrushBits, mAirbrushBitsFrame, x, y, r);
                 break;
             case SHAPE_FOUNTAIN_PEN:
-                tmpRF.set(x-r,y-r,x+r,y+r);
                 if (mFountainPenBits == null || mFountainPenBitsFrame == null) {
                     throw new RuntimeException("Slate.drawStrokePoint: no fountainpen bitmap - frame=" + mFountainPenBitsFrame);
                 }
-                c.drawBitmap(mFountainPenBits, mFountainPenBitsFrame, tmpRF, mPaint);
+                drawBitmapStamp(c, mFountainPenBits, mFountainPenBitsFrame, x, y, r);
                 break;
             case SHAPE_CIRCLE:
             default:
@@ -330,6 +623,23 @@ public class Slate extends View {
             dirty.union(x-r, y-r, x+r, y+r);
         }
         
+        private void drawBitmapStamp(CanvasLite c, Bitmap bits, Rect frame, float x, float y,
+                float r) {
+            if (STAMP_CACHE) {
+                final Bitmap stamp = mStampCache.get(mShape, bits, frame, r,
+                        (mPenColor != 0) ? mPenColor : Color.BLACK);
+                if (stamp != null) {
+                    // on whole pixels, so that it's a straight copy and not a filtered one
+                    final float half = stamp.getWidth() * 0.5f;
+                    c.drawBitmap(stamp, Math.round(x - half), Math.round(y - half),
+                            mStampPaint);
+                    return;
+                }
+            }
+            tmpRF.set(x-r,y-r,x+r,y+r);
+            c.drawBitmap(bits, frame, tmpRF, mPaint);
+        }
+
         private final RectF tmpDirtyRectF = new RectF();
         public RectF strokeTo(CanvasLite c, float x, float y, float r) {
             final RectF dirty = tmpDirtyRectF;
@@ -354,15 +664,7 @@ public class Slate extends View {
                     yi = lerp(mLastY, y, frac);
                     drawStrokePoint(c,xi,yi,ri,dirty);
 
-                    // for very narrow lines we must step (not much more than) one radius at a time
-                    final float MIN = 1f;
-                    final float THRESH = 16f;
-                    final float SLOPE = 0.1f; // asymptote: the spacing will increase as SLOPE*x
-                    if (ri <= THRESH) {
-                        d += MIN;
-                    } else {
-                        d += Math.sqrt(SLOPE * Math.pow(ri - THRESH, 2) + MIN);
-                    }
+                    d += (ri <= STAMP_SPACING_THRESH) ? STAMP_SPACING_MIN : mSpacingTable.get(ri);
                 }
                 
                 /* 
@@ -406,6 +708,14 @@ public class Slate extends View {
         public float getRadius() {
             return mLastR;
         }
+
+        public float getLastX() {
+            return mLastX;
+        }
+
+        public float getLastY() {
+            return mLastY;
+        }
     }
 
     private MarkersPlotter[] mStrokes;
@@ -431,6 +741,8 @@ public class Slate extends View {
         
         mEmpty = true;
 
+        buildCurveTables(); // until setPenSize()
+
         // setup brush bitmaps
         final ActivityManager am = (ActivityManager) getContext().getSystemService(Context.ACTIVITY_SERVICE);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
@@ -466,6 +778,8 @@ public class Slate extends View {
         mStrokes = new MarkersPlotter[MAX_POINTERS]; // TODO: don't bother unless hasSystemFeature(MULTITOUCH_DISTINCT)
         for (int i=0; i<mStrokes.length; i++) {
             mStrokes[i] = new MarkersPlotter();
+            mPublishedDirty[i] = new RectF();
+            mAppliedDirty[i] = new RectF();
         }
         
         mPressureCooker = new PressureCooker(getContext());
@@ -487,6 +801,10 @@ public class Slate extends View {
 
         mBlitPaint = new Paint();
 
+        mPredictionPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mPredictionPaint.setStyle(Paint.Style.STROKE);
+        mPredictionPaint.setStrokeCap(Paint.Cap.ROUND);
+
         if (true) {
             mDebugPaints[0] = new Paint();
             mDebugPaints[0].setStyle(Paint.Style.STROKE);
@@ -517,6 +835,7 @@ public class Slate extends View {
     public void setZoomPosNoInval(float x, float y) {
         mPanX = x;
         mPanY = y;
+        mTransform = new ViewTransform(mPanX, mPanY, mZoomMatrix, mZoomMatrixInv);
     }
 
     public void setZoomPos(float x, float y) {
@@ -560,29 +879,123 @@ public class Slate extends View {
     public void setZoom(Matrix m) {
         mZoomMatrix.set(m);
         mZoomMatrix.invert(mZoomMatrixInv);
+        mTransform = new ViewTransform(mPanX, mPanY, mZoomMatrix, mZoomMatrixInv);
     }
     
+    static StrokeFilter newStrokeFilter(int type, SpotFilter.Plotter plotter) {
+        switch (type) {
+        case FILTER_ONE_EURO:
+            return new OneEuroFilter(ONE_EURO_MIN_CUTOFF, ONE_EURO_BETA,
+                    ONE_EURO_DERIV_CUTOFF, plotter);
+        case FILTER_KALMAN:
+            return new KalmanFilter(KALMAN_ACCEL_VAR, KALMAN_NOISE_VAR, plotter);
+        default:
+            return new SpotFilter(SMOOTHING_FILTER_WLEN, SMOOTHING_FILTER_POS_DECAY,
+                    SMOOTHING_FILTER_PRESSURE_DECAY, plotter);
+        }
+    }
+
+    // The same pipeline as a finger on the screen, with the current pen size, drawing into target
+    // instead. Independent of the pens in use, so it can be driven from another thread. It gets
+    // its own copy of the PressureCooker, so that fake input can't recalibrate (and save) the
+    // user's.
+    StrokeBenchmark.Pen newOffscreenPen(CanvasLite target, int penType, int color) {
+        final MarkersPlotter pen = new MarkersPlotter(target, new PressureCooker(mPressureCooker));
+        pen.setPenType(penType);
+        pen.setPenColor(color);
+        return pen;
+    }
+
+    // The input recorded in stroke debug mode, or null. Call it on the UI thread, which is
+    // where mRecorder comes and goes, and hand the copy to runStrokeBenchmark().
+    public float[] copyRecordedStrokes() {
+        final StrokeBenchmark.Recorder recorder = mRecorder;
+        return (recorder != null) ? recorder.toStream() : null;
+    }
+
+    // Runs StrokeBenchmark on a canvas the size of this one, replaying recording (if not null)
+    // too. The report ends with how the stamp cache and this canvas's bitmap pool have done.
+    public String runStrokeBenchmark(float[] recording) {
+        final TiledBitmapCanvas canvas = mTiledCanvas;
+        final int w = (canvas != null) ? canvas.getWidth() : getWidth();
+        final int h = (canvas != null) ? canvas.getHeight() : getHeight();
+        return StrokeBenchmark.runAll(this, w, h, recording)
+                + mStampCache.toString() + "\n"
+                + ((canvas != null) ? String.format("bitmap pool: %d hits, %d misses\n",
+                        canvas.getBitmapPoolHits(), canvas.getBitmapPoolMisses()) : "");
+    }
+
     public void setPenSize(float min, float max) {
         mRadiusMin = min * 0.5f;
         mRadiusMax = max * 0.5f;
+        buildCurveTables();
+    }
+
+    static float stampSpacing(float r) {
+        if (r <= STAMP_SPACING_THRESH) return STAMP_SPACING_MIN;
+        final float over = r - STAMP_SPACING_THRESH;
+        return (float) Math.sqrt(STAMP_SPACING_SLOPE * over * over + STAMP_SPACING_MIN);
+    }
+
+    // Tabulates the curves that plot() and strokeTo() would otherwise compute for every point
+    // and every stamp.
+    private void buildCurveTables() {
+        final float rmin = mRadiusMin, rmax = mRadiusMax, exponent = mPressureExponent;
+        final LookupTable radius = new LookupTable(new LookupTable.Function() {
+            @Override
+            public float apply(float p) {
+                return lerp(rmin, rmax, (float) Math.pow(p, exponent));
+            }
+        }, 0, CURVE_TABLE_MAX_PRESSURE, CURVE_TABLE_INTERVALS);
+        final float maxRadius = Math.max(radius.get(CURVE_TABLE_MAX_PRESSURE),
+                STAMP_SPACING_THRESH + 1);
+        mSpacingTable = new LookupTable(new LookupTable.Function() {
+            @Override
+            public float apply(float r) {
+                return stampSpacing(r);
+            }
+        }, STAMP_SPACING_THRESH, maxRadius, CURVE_TABLE_INTERVALS);
+        mRadiusTable = radius;
     }
 
     public void recycle() {
     	// WARNING: the slate will not be usable until you call load() or clear() or something
+        syncRenderThread();
     	if (mTiledCanvas != null) {
 	    	mTiledCanvas.recycleBitmaps();
 	        mTiledCanvas = null;
     	}
+        if (mScreen != null) {
+            mScreen.recycle();
+            mScreen = null;
+            mScreenCanvas = null;
+        }
     }
 
     public void clear() {
+        clear(null);
+    }
+
+    // Clears the canvas in the background (see mCanvasOp); done, if not null, runs on the UI
+    // thread once it's finished.
+    public void clear(Runnable done) {
+        syncRenderThread();
         if (mTiledCanvas != null) {
             commitStroke();
-            mTiledCanvas.drawColor(0x00000000, PorterDuff.Mode.SRC);
-            invalidate();
-        } else if (mPendingPaintBitmap != null) { // FIXME for tiling
-            mPendingPaintBitmap.recycle();
-            mPendingPaintBitmap = null;
+            final TiledBitmapCanvas canvas = mTiledCanvas;
+            startCanvasOp(new Runnable() {
+                @Override
+                public void run() {
+                    canvas.drawColor(0x00000000, PorterDuff.Mode.SRC);
+                }
+            }, done);
+        } else {
+            if (mPendingPaintBitmap != null) { // FIXME for tiling
+                mPendingPaintBitmap.recycle();
+                mPendingPaintBitmap = null;
+                mPendingPaintDone = null;
+            }
+            if (done != null) done.run();
         }
         mEmpty = true;
 
@@ -592,8 +1005,14 @@ public class Slate extends View {
 
     public int getDebugFlags() { return mDebugFlags; }
     public void setDebugFlags(int f) {
+        syncRenderThread();
         if (f != mDebugFlags) {
             mDebugFlags = f;
+            if (0 != (f & FLAG_DEBUG_STROKES)) {
+                if (mRecorder == null) mRecorder = new StrokeBenchmark.Recorder();
+            } else {
+                mRecorder = null;
+            }
             mTiledCanvas.setDebug(0 != (f & FLAG_DEBUG_TILES));
             invalidate();
         }
@@ -675,6 +1094,7 @@ public class Slate extends View {
     }
 
     public void commitStroke() {
+        syncRenderThread();
         if (mTiledCanvas == null) {
             final Throwable e = new Throwable();
             e.fillInStackTrace();
@@ -685,6 +1105,7 @@ public class Slate extends View {
     }
 
     public void undo() {
+        syncRenderThread();
         if (mTiledCanvas == null) {
             Log.v(TAG, "undo before mTiledCanvas inited");
         }
@@ -693,9 +1114,28 @@ public class Slate extends View {
         invalidate();
     }
 
+    public void redo() {
+        syncRenderThread();
+        if (mTiledCanvas == null) {
+            Log.v(TAG, "redo before mTiledCanvas inited");
+            return;
+        }
+        mTiledCanvas.step(1);
+
+        invalidate();
+    }
+
     public void paintBitmap(Bitmap b) {
+        paintBitmap(b, null);
+    }
+
+    // Paints b over the canvas, scaled to fit, in the background (see mCanvasOp); done, if not
+    // null, runs on the UI thread once it's finished.
+    public void paintBitmap(final Bitmap b, Runnable done) {
+        syncRenderThread();
         if (mTiledCanvas == null) {
             mPendingPaintBitmap = b;
+            mPendingPaintDone = done;
             return;
         }
 
@@ -709,8 +1149,14 @@ public class Slate extends View {
         if (DEBUG) { 
             Log.v(TAG, "paintBitmap: drawing new bits into current canvas");
         }
-        mTiledCanvas.drawBitmap(b, m, sBitmapPaint);
-        invalidate();
+        final TiledBitmapCanvas canvas = mTiledCanvas;
+        final Matrix matrix = m;
+        startCanvasOp(new Runnable() {
+            @Override
+            public void run() {
+                canvas.drawBitmap(b, matrix, sBitmapPaint);
+            }
+        }, done);
 
         if (DEBUG) Log.d(TAG, String.format("paintBitmap(%s, %dx%d): canvas=%s",
             b.toString(), b.getWidth(), b.getHeight(),
@@ -724,6 +1170,7 @@ public class Slate extends View {
     }
 
     public Bitmap getBitmap() {
+        syncRenderThread();
         if (mTiledCanvas != null) {
             commitStroke();
             return mTiledCanvas.toBitmap();
@@ -731,34 +1178,35 @@ public class Slate extends View {
         return null;
     }
 
-    public Bitmap copyBitmap(boolean withBackground) {
-        Bitmap newb = null;
-        Bitmap b = getBitmap();
-        if (b != null) {
-            newb = Bitmap.createBitmap(b.getWidth(), b.getHeight(), b.getConfig());
-        }
-        if (newb != null) {
-            Canvas newc = new Canvas(newb);
-            if (mBackgroundColor != Color.TRANSPARENT && withBackground) {
-                newc.drawColor(mBackgroundColor);
-            }
-            newc.drawBitmap(b, 0, 0, null);
-        }
-        return newb;
+    // The drawing as of now, for saving on another thread without copying it first. Whoever gets
+    // it must release() it.
+    public TiledBitmapCanvas.Snapshot snapshot() {
+        syncRenderThread();
+        if (mTiledCanvas == null) return null;
+        commitStroke();
+        return mTiledCanvas.snapshot();
+    }
+
+    public int getDrawingBackground() {
+        return mBackgroundColor;
     }
 
     public void setPenColor(int color) {
+        syncRenderThread();
         for (MarkersPlotter plotter : mStrokes) {
             // XXX: todo: only do this if the stroke hasn't begun already
             // ...or not; the current behavior allows RAINBOW MODE!!!1!
             plotter.setPenColor(color);
         }
+        mStampCache.clear(); // the old color's stamps are dead weight now
     }
     
     public void setPenType(int shape) {
+        syncRenderThread();
         for (MarkersPlotter plotter : mStrokes) {
             plotter.setPenType(shape);
         }
+        mStampCache.clear();
     }
     
     @Override
@@ -769,22 +1217,29 @@ public class Slate extends View {
         final int widthPx = DENSITY*w;
         final int heightPx = DENSITY*h;
         final int bytesPerCanvas = widthPx * heightPx * 4;
-        int numVersions = TiledBitmapCanvas.DEFAULT_NUM_VERSIONS;
         final int memCeiling = (mMemClass * 1024 * 1024);
-        if (bytesPerCanvas * (numVersions + 2) > memCeiling) {
-            numVersions = memCeiling / bytesPerCanvas - 2;
+        // Undo history is stored as compressed deltas, so it's budgeted in bytes: the memory
+        // that used to buy DEFAULT_NUM_VERSIONS full copies of the canvas.
+        long historyBytes = (long) bytesPerCanvas * TiledBitmapCanvas.DEFAULT_NUM_VERSIONS;
+        // Bitmaps outside that budget: the live canvas, a copy-on-write spare for each tile,
+        // the tiles a snapshot keeps pinned while saving, zoomed-out mips (1/4 + 1/16 of a
+        // canvas), the tile pool (up to a page of tiles), and the screen copy (see mScreen).
+        final long overheadBytes = (long) bytesPerCanvas * 4 + bytesPerCanvas / 3
+                + (INVALIDATE_ALL_THE_THINGS ? 0 : (long) w * h * 4);
+        if (historyBytes + overheadBytes > memCeiling) {
+            historyBytes = memCeiling - overheadBytes;
         }
-        if (numVersions < 1) { // uh get some RAM already
-            numVersions = 1;
+        if (historyBytes < bytesPerCanvas) { // uh get some RAM already
+            historyBytes = bytesPerCanvas;
         }
 
         Log.v(TAG, String.format(
-                "About to init tiled %dx canvas: %dx%d x 32bpp x %d = %d bytes (ceiling: %d)",
+                "About to init tiled %dx canvas: %dx%d x 32bpp = %d bytes + %d bytes history (ceiling: %d)",
                 DENSITY,
                 widthPx,
                 heightPx,
-                numVersions,
-                widthPx * heightPx * 4 * numVersions,
+                bytesPerCanvas,
+                historyBytes,
                 memCeiling
                 ));
         mTiledCanvas = new TiledBitmapCanvas(
@@ -792,16 +1247,33 @@ public class Slate extends View {
             heightPx,
             Bitmap.Config.ARGB_8888,
             TiledBitmapCanvas.DEFAULT_TILE_SIZE,
-            numVersions
+            MAX_UNDO_LEVELS,
+            historyBytes,
+            INFINITE_CANVAS
             );
         if (mTiledCanvas == null) {
             throw new RuntimeException("onSizeChanged: Unable to allocate main buffer (" + w + "x" + h + ")");
         }
+        File spillFile = null;
+        try {
+            spillFile = File.createTempFile(HISTORY_SPILL_PREFIX, HISTORY_SPILL_SUFFIX,
+                    getContext().getCacheDir());
+        } catch (IOException e) {
+            Log.e(TAG, "can't create a history spill file", e);
+        }
+        if (spillFile != null && mTiledCanvas.setSpillFile(spillFile, HISTORY_SPILL_BYTES)) {
+            // deep history is cheap now, so keep less of it on the heap
+            final long spillHeapBytes = (long) bytesPerCanvas * HISTORY_SPILL_HEAP_CANVASES;
+            if (spillHeapBytes < historyBytes) {
+                mTiledCanvas.setMaxHistoryBytes(spillHeapBytes);
+            }
+        }
 
         final Bitmap b = mPendingPaintBitmap; 
         if (b != null) {
             mPendingPaintBitmap = null;
-            paintBitmap(b);
+            paintBitmap(b, mPendingPaintDone);
+            mPendingPaintDone = null;
         }
 
         resetZoom();
@@ -810,27 +1282,54 @@ public class Slate extends View {
     @Override
     protected void onDraw(Canvas canvas) {
         if (mTiledCanvas != null) {
+            // TODO: tune this threshold based on the device density
+            mBlitPaint.setFilterBitmap(getScale(mZoomMatrix) < 3f);
+            if (!INVALIDATE_ALL_THE_THINGS) {
+                // The whole screen copy, every frame: neither kind of hardware layer reliably
+                // keeps what a frame doesn't draw. (It doesn't overlap the workspace, so it can
+                // go down first.)
+                synchronized (mCanvasLock) { // see RENDER_THREAD
+                    if (mCanvasOp != null) {
+                        // the canvas is busy (see mCanvasOp); keep showing the last frame
+                        if (mScreen != null) canvas.drawBitmap(mScreen, 0, 0, null);
+                    } else if (updateScreen()) {
+                        canvas.drawBitmap(mScreen, 0, 0, null);
+                    }
+                }
+            }
+
             canvas.save(Canvas.MATRIX_SAVE_FLAG);
 
             if (mPanX != 0 || mPanY != 0 || !mZoomMatrix.isIdentity()) {
                 canvas.translate(mPanX, mPanY);
                 canvas.concat(mZoomMatrix);
 
-                canvas.drawRect(-20000, -20000, 20000, 0, mWorkspacePaint);
-                canvas.drawRect(-20000, 0, 0, mTiledCanvas.getHeight(), mWorkspacePaint);
-                canvas.drawRect(mTiledCanvas.getWidth(), 0, 20000, mTiledCanvas.getHeight(), mWorkspacePaint);
-                canvas.drawRect(-20000, mTiledCanvas.getHeight(), 20000, 20000, mWorkspacePaint);
+                if (!INFINITE_CANVAS) { // otherwise there's no edge to show
+                    canvas.drawRect(-20000, -20000, 20000, 0, mWorkspacePaint);
+                    canvas.drawRect(-20000, 0, 0, mTiledCanvas.getHeight(), mWorkspacePaint);
+                    canvas.drawRect(mTiledCanvas.getWidth(), 0, 20000, mTiledCanvas.getHeight(), mWorkspacePaint);
+                    canvas.drawRect(-20000, mTiledCanvas.getHeight(), 20000, 20000, mWorkspacePaint);
+                }
             }
             
             if (!mDirtyRegion.isEmpty()) {
                 canvas.clipRegion(mDirtyRegion);
                 mDirtyRegion.setEmpty();
             }
-            // TODO: tune this threshold based on the device density
-            mBlitPaint.setFilterBitmap(getScale(mZoomMatrix) < 3f);
-            mTiledCanvas.drawTo(canvas, 0, 0, mBlitPaint, false); // @@ set to true for dirty tile updates
-            if (0 != (mDebugFlags & FLAG_DEBUG_STROKES)) {
-                drawStrokeDebugInfo(canvas);
+            synchronized (mCanvasLock) { // see RENDER_THREAD
+                if (INVALIDATE_ALL_THE_THINGS && mCanvasOp == null) {
+                    mTiledCanvas.setDrawScale(getScale(mZoomMatrix));
+                    mTiledCanvas.drawTo(canvas, 0, 0, mBlitPaint, false,
+                            getVisibleRect(mVisibleRect));
+                }
+                if (PREDICT_STROKES) {
+                    for (MarkersPlotter st : mStrokes) {
+                        st.drawPrediction(canvas, mPredictionPaint);
+                    }
+                }
+                if (0 != (mDebugFlags & FLAG_DEBUG_STROKES)) {
+                    drawStrokeDebugInfo(canvas);
+                }
             }
 
             canvas.restore();
@@ -841,6 +1340,47 @@ public class Slate extends View {
         }
     }
 
+    // Brings mScreen up to date with the canvas, compositing only the tiles drawn on since the
+    // last frame, or everything on screen if the view, its transform, or (see invalidate()) the
+    // drawing as a whole has changed since. Returns false if there's nothing to show yet.
+    // Call it with mCanvasLock held.
+    private boolean updateScreen() {
+        final int w = getWidth(), h = getHeight();
+        if (w == 0 || h == 0) return false;
+        if (mScreen == null || mScreen.getWidth() != w || mScreen.getHeight() != h) {
+            if (mScreen != null) mScreen.recycle();
+            mScreen = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+            if (mScreen == null) return false;
+            mScreenCanvas = new Canvas(mScreen);
+            mScreenValid = false;
+        }
+        mTmpMatrix.set(mZoomMatrix);
+        mTmpMatrix.postTranslate(mPanX, mPanY);
+        if (!mTmpMatrix.equals(mScreenMatrix)) {
+            mScreenMatrix.set(mTmpMatrix);
+            mScreenValid = false;
+        }
+        if (!mScreenValid) mScreen.eraseColor(Color.TRANSPARENT);
+        mTiledCanvas.setDrawScale(getScale(mZoomMatrix));
+        mScreenCanvas.save();
+        mScreenCanvas.concat(mScreenMatrix);
+        mTiledCanvas.drawTo(mScreenCanvas, 0, 0, mBlitPaint, mScreenValid,
+                getVisibleRect(mVisibleRect));
+        mScreenCanvas.restore();
+        mScreenValid = true;
+        return true;
+    }
+
+    private final RectF mVisibleRect = new RectF();
+    private final Matrix mTmpMatrix = new Matrix();
+    // The part of the canvas that's on screen, in canvas coordinates.
+    public RectF getVisibleRect(RectF r) {
+        r.set(0, 0, getWidth(), getHeight());
+        r.offset(-mPanX, -mPanY);
+        mZoomMatrixInv.mapRect(r);
+        return r;
+    }
+
     private static final float[] mvals = new float[9];
     public static float getScale(Matrix m) {
         m.getValues(mvals);
@@ -906,9 +1446,312 @@ public class Slate extends View {
         return span; 
     }
 
+    // Stamps whatever is in mStrokeQueue, a chunk at a time, and sleeps when there's nothing.
+    private class RenderThread extends Thread {
+        private volatile boolean mQuit;
+        private final Spot mSpot = new Spot();
+
+        public RenderThread() {
+            super("Markers/RenderThread");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!mQuit) {
+                if (mStrokeQueue.isEmpty()) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                synchronized (mCanvasLock) {
+                    beginBatch();
+                    for (int n = 0; n < STROKE_QUEUE_CHUNK; n++) {
+                        final int op = mStrokeQueue.poll(mSpot);
+                        if (op == 0) break;
+                        final int pointer = op >>> 16;
+                        switch (op & 0xFFFF) {
+                        case StrokeQueue.OP_ADD:
+                            mStrokes[pointer].add(mSpot);
+                            break;
+                        case StrokeQueue.OP_FINISH:
+                            mStrokes[pointer].finish(mSpot.time);
+                            break;
+                        case StrokeQueue.OP_COMMIT:
+                            if (mTiledCanvas != null) mTiledCanvas.commit();
+                            break;
+                        }
+                    }
+                    endBatch();
+                }
+                synchronized (mQueueDrained) {
+                    mQueueDrained.notifyAll();
+                }
+            }
+        }
+
+        public void quit() {
+            mQuit = true;
+            LockSupport.unpark(this);
+        }
+    }
+
+    // Producer side of mStrokeQueue; waits for room if the render thread is a whole queue
+    // behind.
+    private void enqueue(int op, int pointer, float x, float y, float size, float pressure,
+            long time, int tool) {
+        if (mStrokeQueue.offer(op, pointer, x, y, size, pressure, time, tool)) return;
+        boolean interrupted = false;
+        synchronized (mQueueDrained) {
+            while (!mStrokeQueue.offer(op, pointer, x, y, size, pressure, time, tool)) {
+                interrupted |= waitForRenderThread();
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    // Called holding mQueueDrained: wakes the render thread and waits for it to finish a chunk.
+    // Returns true if interrupted meanwhile.
+    private boolean waitForRenderThread() {
+        LockSupport.unpark(mRenderThread);
+        try {
+            mQueueDrained.wait();
+            return false;
+        } catch (InterruptedException e) {
+            return true;
+        }
+    }
+
+    private static synchronized ExecutorService getCanvasOpThread() {
+        if (sCanvasOpThread == null) {
+            sCanvasOpThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread t = new Thread(r, "Markers/CanvasOp");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return sCanvasOpThread;
+    }
+
+    // Starts op, something that goes over the whole canvas, on sCanvasOpThread, and returns
+    // right away. done (if not null) runs on the UI thread afterwards.
+    private void startCanvasOp(final Runnable op, Runnable done) {
+        syncRenderThread(); // which also finishes any earlier op
+        mCanvasOpDone = done;
+        mCanvasOp = getCanvasOpThread().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    op.run();
+                } finally {
+                    post(mFinishCanvasOp);
+                }
+            }
+        });
+    }
+
+    private final Runnable mFinishCanvasOp = new Runnable() {
+        @Override
+        public void run() {
+            finishCanvasOp();
+        }
+    };
+
+    // Waits for the op in progress, if any, then shows the result, runs its callback, and
+    // delivers the touches that came in meanwhile.
+    private void finishCanvasOp() {
+        final Future<?> op = mCanvasOp;
+        if (op == null) return;
+        mCanvasOp = null;
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    op.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException("canvas operation failed", e.getCause());
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        invalidate();
+        final Runnable done = mCanvasOpDone;
+        mCanvasOpDone = null;
+        if (done != null) done.run();
+        if (!mHeldEvents.isEmpty()) {
+            final MotionEvent[] held = mHeldEvents.toArray(new MotionEvent[mHeldEvents.size()]);
+            mHeldEvents.clear();
+            for (MotionEvent e : held) {
+                onTouchEvent(e);
+                e.recycle();
+            }
+        }
+    }
+
+    // Waits for the render thread to finish everything queued so far (and for any whole-canvas
+    // op; see mCanvasOp). After this, and until the next touch event, the UI thread may use the
+    // canvas and the plotters freely.
+    private void syncRenderThread() {
+        finishCanvasOp();
+        if (mRenderThread == null) return;
+        boolean interrupted = false;
+        synchronized (mQueueDrained) {
+            while (!mStrokeQueue.isEmpty()) {
+                interrupted |= waitForRenderThread();
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        synchronized (mCanvasLock) {
+            // the last chunk is done
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (RENDER_THREAD && mRenderThread == null) {
+            mStrokeQueue = new StrokeQueue(STROKE_QUEUE_SIZE);
+            mRenderThread = new RenderThread();
+            mRenderThread.start();
+        }
+        if (PARALLEL_POINTERS && mStrokePool == null) {
+            final int threads = Math.min(Runtime.getRuntime().availableProcessors(),
+                    MAX_STROKE_THREADS) - 1;
+            if (threads > 0) {
+                mStrokePool = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                final Thread t = new Thread(r, "Markers/StrokeWorker");
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        });
+                for (int j = 0; j < mPointerTasks.length; j++) {
+                    mPointerTasks[j] = new PointerTask();
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        finishCanvasOp(); // its callback may not get posted once we're gone
+        if (mRenderThread != null) {
+            syncRenderThread();
+            mRenderThread.quit();
+            mRenderThread = null;
+        }
+        if (mStrokePool != null) {
+            mStrokePool.shutdown();
+            mStrokePool = null;
+        }
+        super.onDetachedFromWindow();
+    }
+
+    // One pointer's samples from a move event, for mStrokePool.
+    private class PointerTask implements Runnable {
+        private MotionEvent mEvent;
+        private int mIndex;
+        private CountDownLatch mDone;
+
+        public void set(MotionEvent event, int j, CountDownLatch done) {
+            mEvent = event;
+            mIndex = j;
+            mDone = done;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mStrokes[mEvent.getPointerId(mIndex)].addAll(mEvent, mIndex,
+                        getToolTypeCompat(mEvent, mIndex));
+            } finally {
+                mEvent = null;
+                mDone.countDown();
+            }
+        }
+    }
+
+    // Stamps all P pointers of a move event at once: the first one here, the rest on
+    // mStrokePool. Returns when they're all done, so the event can be recycled.
+    private void addAllParallel(MotionEvent event, int P) {
+        final CountDownLatch done = new CountDownLatch(P - 1);
+        for (int j = 1; j < P; j++) {
+            mPointerTasks[j].set(event, j, done);
+            mStrokePool.execute(mPointerTasks[j]);
+        }
+        mStrokes[event.getPointerId(0)].addAll(event, 0, getToolTypeCompat(event, 0));
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    // The stroke operations of onTouchEvent(), which either happen right here or get queued
+    // for the render thread.
+    private void strokeAdd(int pointer, Spot s) {
+        if (mRenderThread != null) {
+            enqueue(StrokeQueue.OP_ADD, pointer, s.x, s.y, s.size, s.pressure, s.time, s.tool);
+        } else {
+            mStrokes[pointer].add(s);
+        }
+    }
+
+    private void strokeAddAll(int pointer, MotionEvent event, int j, int tool) {
+        if (mRenderThread == null) {
+            mStrokes[pointer].addAll(event, j, tool);
+            return;
+        }
+        final int N = event.getHistorySize();
+        for (int i = 0; i < N; i++) {
+            final float size = event.getHistoricalSize(j, i);
+            enqueue(StrokeQueue.OP_ADD, pointer,
+                    event.getHistoricalX(j, i), event.getHistoricalY(j, i), size,
+                    event.getHistoricalPressure(j, i) + size,
+                    event.getHistoricalEventTime(i), tool);
+        }
+        final float size = event.getSize(j);
+        enqueue(StrokeQueue.OP_ADD, pointer, event.getX(j), event.getY(j), size,
+                event.getPressure(j) + size, event.getEventTime(), tool);
+    }
+
+    private void strokeFinish(int pointer, long time) {
+        if (mRenderThread != null) {
+            enqueue(StrokeQueue.OP_FINISH, pointer, 0, 0, 0, 0, time, 0);
+        } else {
+            mStrokes[pointer].finish(time);
+        }
+    }
+
+    private void strokeCommit() {
+        if (mRenderThread != null) {
+            enqueue(StrokeQueue.OP_COMMIT, 0, 0, 0, 0, 0, 0, 0);
+        } else {
+            commitStroke();
+        }
+    }
+
     @SuppressLint("NewApi")
     @Override
     public boolean onTouchEvent(MotionEvent event) {
+        if (mCanvasOp != null) {
+            // the canvas is busy; see mCanvasOp
+            mHeldEvents.add(MotionEvent.obtain(event));
+            return true;
+        }
         final int action = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.FROYO)
                 ? event.getActionMasked()
                 : event.getAction();
@@ -920,13 +1763,16 @@ public class Slate extends View {
 
         // starting a new touch? commit the previous state of the canvas
         if (action == MotionEvent.ACTION_DOWN) {
-            commitStroke();
+            strokeCommit();
         }
 
         if (mZoomMode) {
             return false;
         }
 
+        // (with a render thread, the batches happen over there)
+        if (mRenderThread == null) beginBatch();
+
         if (action == MotionEvent.ACTION_DOWN || action == MotionEvent.ACTION_POINTER_DOWN
         		|| action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_POINTER_UP) {
             int j = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.FROYO)
@@ -941,55 +1787,35 @@ public class Slate extends View {
         			time,
         			getToolTypeCompat(event, j)
         			);
-            mStrokes[event.getPointerId(j)].add(mTmpSpot);
+            strokeAdd(event.getPointerId(j), mTmpSpot);
         	if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_POINTER_UP) {
-	            mStrokes[event.getPointerId(j)].finish(time);
+	            strokeFinish(event.getPointerId(j), time);
         	}
         } else if (action == MotionEvent.ACTION_MOVE) {
             if (dbgX >= 0) {
                 dbgRect.set(dbgX-1,dbgY-1,dbgX+1,dbgY+1);
             }
 
-            for (int i = 0; i < N; i++) {
-                for (int j = 0; j < P; j++) {
-                	mTmpSpot.update(
-                			event.getHistoricalX(j, i),
-                			event.getHistoricalY(j, i),
-                			event.getHistoricalSize(j, i),
-                			event.getHistoricalPressure(j, i)
-                                + event.getHistoricalSize(j, i),
-                			event.getHistoricalEventTime(i),
-                            getToolTypeCompat(event, j)
-                			);
-                    if ((mDebugFlags & FLAG_DEBUG_STROKES) != 0) {
-                        if (dbgX >= 0) {
-                            //mTiledCanvas.drawLine(dbgX, dbgY, mTmpSpot.x, mTmpSpot.y, mDebugPaints[3]);
-                        }
-                        dbgX = mTmpSpot.x;
-                        dbgY = mTmpSpot.y;
-                        dbgRect.union(dbgX-1, dbgY-1, dbgX+1, dbgY+1);
-                    }
-                    mStrokes[event.getPointerId(j)].add(mTmpSpot);
-                }
-            }
+            // (pointers can't be split across threads once they're queued for mRenderThread,
+            // and the benchmark recorder wants them in order)
+            final boolean parallel = (mStrokePool != null && mRenderThread == null
+                    && mRecorder == null && P > 1);
+            if (parallel) addAllParallel(event, P);
+
             for (int j = 0; j < P; j++) {
-            	mTmpSpot.update(
-            			event.getX(j),
-            			event.getY(j),
-            			event.getSize(j),
-            			event.getPressure(j) + event.getSize(j),
-            			time,
-                        getToolTypeCompat(event, j)
-           			);
+                if (!parallel) {
+                    strokeAddAll(event.getPointerId(j), event, j, getToolTypeCompat(event, j));
+                }
                 if ((mDebugFlags & FLAG_DEBUG_STROKES) != 0) {
-                    if (dbgX >= 0) {
-                        //mTiledCanvas.drawLine(dbgX, dbgY, mTmpSpot.x, mTmpSpot.y, mDebugPaints[3]);
+                    for (int i = 0; i < N; i++) {
+                        final float hx = event.getHistoricalX(j, i);
+                        final float hy = event.getHistoricalY(j, i);
+                        dbgRect.union(hx-1, hy-1, hx+1, hy+1);
                     }
-                    dbgX = mTmpSpot.x;
-                    dbgY = mTmpSpot.y;
+                    dbgX = event.getX(j);
+                    dbgY = event.getY(j);
                     dbgRect.union(dbgX-1, dbgY-1, dbgX+1, dbgY+1);
                 }
-                mStrokes[event.getPointerId(j)].add(mTmpSpot);
             }
 
             if ((mDebugFlags & FLAG_DEBUG_STROKES) != 0) {
@@ -1001,9 +1827,21 @@ public class Slate extends View {
         
         if (action == MotionEvent.ACTION_CANCEL || action == MotionEvent.ACTION_UP) {
             for (int j = 0; j < P; j++) {
-                mStrokes[event.getPointerId(j)].finish(time);
+                strokeFinish(event.getPointerId(j), time);
             }
+            // all fingers are up; close out this version now so the canvas can prepare its
+            // copy-on-write snapshots between strokes instead of at the next ACTION_DOWN
+            strokeCommit();
             dbgX = dbgY = -1;
+            if (mRenderThread != null && (mDebugFlags & FLAG_DEBUG_STROKES) != 0) {
+                Log.v(TAG, mStrokeQueue.toString());
+                mStrokeQueue.resetStats();
+            }
+        }
+        if (mRenderThread == null) {
+            endBatch();
+        } else {
+            LockSupport.unpark(mRenderThread);
         }
         return true;
     }
@@ -1016,6 +1854,14 @@ public class Slate extends View {
         return f < a ? a : (f > b ? b : f);
     }
 
+    // Anything but stroke drawing (which comes through invalidate(Rect)) may have changed more
+    // than the dirty tiles show: the screen copy starts over.
+    @Override
+    public void invalidate() {
+        mScreenValid = false;
+        super.invalidate();
+    }
+
     @Override
     public void invalidate(Rect r) {
         if (r.isEmpty()) {
@@ -1024,10 +1870,65 @@ public class Slate extends View {
         super.invalidate(r);
     }
 
+    // Between these, each plotter's dirty() just collects, so that a whole MotionEvent's worth
+    // of strokes (every historical sample) costs one invalidate per pointer. Pointers are kept
+    // apart so that the clean canvas between two far-off fingers isn't invalidated too.
+    private void beginBatch() {
+        mBatching = true;
+        for (MarkersPlotter plotter : mStrokes) {
+            plotter.mBatchDirty.setEmpty();
+        }
+    }
+
+    private void endBatch() {
+        mBatching = false;
+        final boolean publish = (Thread.currentThread() == mRenderThread);
+        for (int i=0; i<mStrokes.length; i++) {
+            final RectF dirty = mStrokes[i].mBatchDirty;
+            if (dirty.isEmpty()) continue;
+            if (publish) {
+                // can't touch the view from here; hand it to the UI thread
+                synchronized (mPublishedDirty) {
+                    mPublishedDirty[i].union(dirty);
+                    if (!mPublishPosted) {
+                        mPublishPosted = true;
+                        post(mApplyPublishedDirty);
+                    }
+                }
+            } else {
+                invalidateCanvas(dirty);
+            }
+            dirty.setEmpty();
+        }
+    }
+
+    private final RectF[] mAppliedDirty = new RectF[MAX_POINTERS];
+    private final Runnable mApplyPublishedDirty = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mPublishedDirty) {
+                for (int i=0; i<MAX_POINTERS; i++) {
+                    mAppliedDirty[i].set(mPublishedDirty[i]);
+                    mPublishedDirty[i].setEmpty();
+                }
+                mPublishPosted = false;
+            }
+            for (RectF dirty : mAppliedDirty) {
+                if (!dirty.isEmpty()) invalidateCanvas(dirty);
+            }
+        }
+    };
+
     final Rect tmpDirtyRect = new Rect();
-    private void dirty(RectF r) {
-        r.roundOut(tmpDirtyRect);
-        tmpDirtyRect.inset((int)-INVALIDATE_PADDING,(int)-INVALIDATE_PADDING);
+    final RectF tmpDirtyRectF = new RectF();
+
+    // r is in canvas coordinates; map it out to the view before invalidating
+    private void invalidateCanvas(RectF r) {
+        tmpDirtyRectF.set(r);
+        tmpDirtyRectF.inset(-INVALIDATE_PADDING, -INVALIDATE_PADDING);
+        mZoomMatrix.mapRect(tmpDirtyRectF);
+        tmpDirtyRectF.offset(mPanX, mPanY);
+        tmpDirtyRectF.roundOut(tmpDirtyRect);
         if (INVALIDATE_ALL_THE_THINGS) {
             invalidate();
         } else if (FANCY_INVALIDATES) {
@@ -16,49 +16,96 @@
 
 package com.google.android.apps.markers;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-
 import android.view.MotionEvent;
 
-public class SpotFilter {
+public class SpotFilter implements StrokeFilter {
     public static boolean DEBUG = true;
     
     public static boolean PRECISE_STYLUS_INPUT = true;
 
+    // Keep running weighted sums of the window instead of adding it all up again for each
+    // sample. Same output (give or take rounding), O(1) per sample whatever the window size.
+    public static boolean INCREMENTAL = true;
+
     public static interface Plotter {
         public void plot(Spot s);
     }
 
-    LinkedList<Spot> mSpots; // NOTE: newest now at front
+    // The window is a ring buffer of mBufSize samples, one field per array, so that filtering
+    // allocates nothing. mHead is the slot of the newest sample and the one i steps older than
+    // that is at (mHead - i) mod mBufSize.
+    final float[] mX, mY, mSize, mPressure;
+    final long[] mTime;
+    final int[] mTool;
+    int mHead = -1;
+    int mCount;
     int mBufSize;
     Plotter mPlotter;
     Spot tmpSpot = new Spot();
     private float mPosDecay;
     private float mPressureDecay;
 
+    // For INCREMENTAL: the window's samples weighted by decay^age, newest first, and the
+    // weights themselves (which only depend on how many samples there are).
+    private final double[] mPosDecayPow, mPressureDecayPow;
+    private final float[] mPosWeight, mPressureWeight;
+    private double mSumX, mSumY, mSumTime, mSumPressure, mSumSize;
+    private int mStylusCount;
+
     public SpotFilter(int size, float posDecay, float pressureDecay, Plotter plotter) {
-        mSpots = new LinkedList<Spot>();
         mBufSize = size;
+        mX = new float[size];
+        mY = new float[size];
+        mSize = new float[size];
+        mPressure = new float[size];
+        mTime = new long[size];
+        mTool = new int[size];
         mPlotter = plotter;
         mPosDecay = (posDecay >= 0 && posDecay <= 1) ? posDecay : 1f;
         mPressureDecay = (pressureDecay >= 0 && pressureDecay <= 1) ? pressureDecay : 1f;
+
+        mPosDecayPow = new double[size];
+        mPressureDecayPow = new double[size];
+        mPosWeight = new float[size + 1];
+        mPressureWeight = new float[size + 1];
+        float wi = 1, wi_press = 1;
+        for (int i=0; i<size; i++) {
+            mPosDecayPow[i] = wi;
+            mPressureDecayPow[i] = wi_press;
+            // summed in the same order as the loop in filteredOutput()
+            mPosWeight[i + 1] = mPosWeight[i] + wi;
+            mPressureWeight[i + 1] = mPressureWeight[i] + wi_press;
+            wi *= mPosDecay;
+            wi_press *= mPressureDecay;
+        }
     }
 
     public Spot filteredOutput(Spot out) {
         if (out == null) out = new Spot();
-        
+
+        // a stylus sample cuts the window short (see below), so the running sums won't do
+        if (INCREMENTAL && !(PRECISE_STYLUS_INPUT && mStylusCount > 0)) {
+            final float w = mPosWeight[mCount], w_press = mPressureWeight[mCount];
+            out.x = (float) (mSumX / w);
+            out.y = (float) (mSumY / w);
+            out.pressure = (float) (mSumPressure / w_press);
+            out.size = (float) (mSumSize / w_press);
+            out.time = (long) mSumTime;
+            out.tool = mTool[mHead];
+            return out;
+        }
+
         float wi = 1, w = 0;
         float wi_press = 1, w_press = 0;
         float x = 0, y = 0, pressure = 0, size = 0;
         long time = 0;
-        for (Spot pi : mSpots) {
-            x += pi.x * wi;
-            y += pi.y * wi;
-            time += pi.time * wi;
+        for (int i=0, k=mHead; i<mCount; i++) {
+            x += mX[k] * wi;
+            y += mY[k] * wi;
+            time += mTime[k] * wi;
             
-            pressure += pi.pressure * wi_press;
-            size += pi.size * wi_press;
+            pressure += mPressure[k] * wi_press;
+            size += mSize[k] * wi_press;
 
             w += wi;
             wi *= mPosDecay; // exponential backoff
@@ -66,10 +113,12 @@ public class SpotFilter {
             w_press += wi_press;
             wi_press *= mPressureDecay;
 
-            if (PRECISE_STYLUS_INPUT && pi.tool == MotionEvent.TOOL_TYPE_STYLUS) {
+            if (PRECISE_STYLUS_INPUT && mTool[k] == MotionEvent.TOOL_TYPE_STYLUS) {
                 // just take the top one, no need to average
                 break;
             }
+
+            if (--k < 0) k = mBufSize - 1;
         }
 
         out.x = x / w;
@@ -77,24 +126,39 @@ public class SpotFilter {
         out.pressure = pressure / w_press;
         out.size = size / w_press;
         out.time = time;
-        out.tool = mSpots.get(0).tool;
+        out.tool = mTool[mHead];
         return out;
     }
 
     public void add(MotionEvent.PointerCoords c, long time) {
-    	addNoCopy(new Spot(c, time));
+        add(c.x, c.y, c.size, c.pressure, time, MotionEvent.TOOL_TYPE_FINGER);
     }
     
     public void add(Spot c) {
-    	addNoCopy(new Spot(c));
+        add(c.x, c.y, c.size, c.pressure, c.time, c.tool);
     }
-    
-    protected void addNoCopy(Spot c) {
-        if (mSpots.size() == mBufSize) {
-            mSpots.removeLast();
-        }
 
-        mSpots.add(0, c);
+    public void add(float x, float y, float size, float pressure, long time, int tool) {
+        if (mCount == mBufSize) removeOldest();
+
+        // everything already in the window gets one step older
+        final double d = mPosDecay, d_press = mPressureDecay;
+        mSumX = x + d * mSumX;
+        mSumY = y + d * mSumY;
+        mSumTime = time + d * mSumTime;
+        mSumPressure = pressure + d_press * mSumPressure;
+        mSumSize = size + d_press * mSumSize;
+        if (tool == MotionEvent.TOOL_TYPE_STYLUS) mStylusCount++;
+
+        if (++mHead == mBufSize) mHead = 0;
+        mCount++;
+
+        mX[mHead] = x;
+        mY[mHead] = y;
+        mSize[mHead] = size;
+        mPressure[mHead] = pressure;
+        mTime[mHead] = time;
+        mTool[mHead] = tool;
 
         tmpSpot = filteredOutput(tmpSpot);
         mPlotter.plot(tmpSpot);
@@ -107,13 +171,29 @@ public class SpotFilter {
     }
 
     public void finish() {
-        while (mSpots.size() > 0) {
+        while (mCount > 0) {
             tmpSpot = filteredOutput(tmpSpot);
-            mSpots.removeLast();
+            removeOldest();
             mPlotter.plot(tmpSpot);
         }
 
-        mSpots.clear();
+        mHead = -1;
+    }
+
+    private void removeOldest() {
+        int k = mHead - (mCount - 1);
+        if (k < 0) k += mBufSize;
+        final double w = mPosDecayPow[mCount - 1], w_press = mPressureDecayPow[mCount - 1];
+        mSumX -= mX[k] * w;
+        mSumY -= mY[k] * w;
+        mSumTime -= mTime[k] * w;
+        mSumPressure -= mPressure[k] * w_press;
+        mSumSize -= mSize[k] * w_press;
+        if (mTool[k] == MotionEvent.TOOL_TYPE_STYLUS) mStylusCount--;
+        if (--mCount == 0) {
+            // start each stroke without any rounding left over from the last
+            mSumX = mSumY = mSumTime = mSumPressure = mSumSize = 0;
+        }
     }
 }
 
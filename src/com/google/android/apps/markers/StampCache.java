@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.markers;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffColorFilter;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+// Bitmap stamps (see Slate.SHAPE_BITMAP_AIRBRUSH) scaled to a radius and tinted ahead of time, so
+// that laying one down is a plain blit instead of a filtered, color-filtered scale on every tile
+// it touches. Radii are rounded to the nearest 1/RADIUS_STEPS of a pixel. The least recently
+// used stamps go once the cache holds more than its budget of pixels. Safe to use from more
+// than one thread.
+final class StampCache {
+    static final int RADIUS_STEPS = 2;
+
+    private static final class Key {
+        int shape, color, radius; // radius in steps
+
+        Key() { }
+
+        Key(Key k) {
+            shape = k.shape;
+            color = k.color;
+            radius = k.radius;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            final Key k = (Key) o;
+            return shape == k.shape && color == k.color && radius == k.radius;
+        }
+
+        @Override
+        public int hashCode() {
+            return (shape * 31 + color) * 31 + radius;
+        }
+    }
+
+    private final LinkedHashMap<Key, Bitmap> mStamps =
+            new LinkedHashMap<Key, Bitmap>(64, 0.75f, true); // access order
+    private final Key mLookup = new Key();
+    private final long mMaxBytes;
+    private long mBytes;
+    private int mHits, mMisses;
+
+    private final Paint mTintPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+    private final RectF mDst = new RectF();
+
+    StampCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    // The stamp for shape at radius r, made from the alpha of frame in bits and tinted color, or
+    // null if there's no room for one. It's square, with the stamp centered in it.
+    synchronized Bitmap get(int shape, Bitmap bits, Rect frame, float r, int color) {
+        final Key key = mLookup;
+        key.shape = shape;
+        key.color = color;
+        key.radius = Math.round(r * RADIUS_STEPS);
+        final Bitmap cached = mStamps.get(key);
+        if (cached != null) {
+            mHits++;
+            return cached;
+        }
+        mMisses++;
+
+        final float rq = (float) key.radius / RADIUS_STEPS;
+        final int size = Math.max(1, (int) Math.ceil(rq * 2));
+        final long bytes = (long) size * size * 4;
+        if (bytes > mMaxBytes) return null;
+        final Bitmap stamp = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        if (stamp == null) return null;
+        final float inset = (size - rq * 2) * 0.5f;
+        mDst.set(inset, inset, size - inset, size - inset);
+        mTintPaint.setColorFilter(new PorterDuffColorFilter(color, PorterDuff.Mode.SRC_ATOP));
+        new Canvas(stamp).drawBitmap(bits, frame, mDst, mTintPaint);
+
+        mStamps.put(new Key(key), stamp);
+        mBytes += bytes;
+        trim();
+        return stamp;
+    }
+
+    private void trim() {
+        final Iterator<Map.Entry<Key, Bitmap>> it = mStamps.entrySet().iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            final Bitmap b = it.next().getValue();
+            mBytes -= (long) b.getWidth() * b.getHeight() * 4;
+            // not recycled: another thread may be in the middle of drawing it
+            it.remove();
+        }
+    }
+
+    synchronized void clear() {
+        mStamps.clear();
+        mBytes = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int lookups = mHits + mMisses;
+        return String.format("stamp cache: %d stamps, %d KB, %.1f%% hits",
+                mStamps.size(), mBytes / 1024, (lookups > 0) ? 100f * mHits / lookups : 0f);
+    }
+}
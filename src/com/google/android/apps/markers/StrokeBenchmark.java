@@ -0,0 +1,448 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.markers;
+
+import java.util.Random;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Debug;
+import android.util.Log;
+import android.view.MotionEvent;
+
+// Throughput of the stroke pipeline (SpotFilter -> MarkersPlotter -> SmoothStroker -> CanvasLite)
+// for each pen type, drawing into an offscreen IntRasterCanvas so that the display isn't part
+// of the measurement. Each is run as finger input (through PressureCooker and the stroke filter)
+// and as stylus input (which skips both). Run it from the debug menu and compare numbers across
+// builds. A last pass stamps through TiledBitmapCanvas and fails if that allocates anything.
+//
+// A touch stream is a float[] of (x, y, pressure) triples, one sample every SAMPLE_INTERVAL_MS;
+// a NaN x ends the current stroke.
+final class StrokeBenchmark {
+    static final String TAG = "Markers/StrokeBenchmark";
+
+    static final long SAMPLE_INTERVAL_MS = 4; // a 240Hz stylus
+    static final int ITERATIONS = 5;
+
+    static final int[] PEN_TYPES = {
+        Slate.TYPE_WHITEBOARD, Slate.TYPE_FELTTIP, Slate.TYPE_AIRBRUSH, Slate.TYPE_FOUNTAIN_PEN,
+    };
+    static final String[] PEN_NAMES = {
+        "whiteboard", "felttip", "airbrush", "fountainpen",
+    };
+
+    static final int[] TOOL_TYPES = {
+        MotionEvent.TOOL_TYPE_FINGER, MotionEvent.TOOL_TYPE_STYLUS,
+    };
+    static final String[] TOOL_NAMES = {
+        "finger", "stylus",
+    };
+
+    static final int[] FILTER_TYPES = {
+        Slate.FILTER_WINDOWED, Slate.FILTER_ONE_EURO, Slate.FILTER_KALMAN,
+    };
+    static final String[] FILTER_NAMES = {
+        "windowed", "oneeuro", "kalman",
+    };
+    static final float FILTER_NOISE_PX = 1.5f; // rms, added to each axis
+    static final int FILTER_MAX_LAG_STEPS = 64; // quarter samples
+
+    // What the benchmark needs from a plotter.
+    interface Pen {
+        void add(Spot s);
+        void finish(long time);
+    }
+
+    static final class Result {
+        String name;
+        long points, stamps, nanos, allocBytes, allocCount;
+
+        double pointsPerSec() {
+            return points * 1e9 / nanos;
+        }
+        double stampsPerSec() {
+            return stamps * 1e9 / nanos;
+        }
+        double allocBytesPerSec() {
+            return allocBytes * 1e9 / nanos;
+        }
+        double allocsPerStamp() {
+            return (stamps > 0) ? (double) allocCount / stamps : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-24s %9.0f pts/s %10.0f stamps/s %9.0f B/s (%d allocs)",
+                    name, pointsPerSec(), stampsPerSec(), allocBytesPerSec(), allocCount);
+        }
+    }
+
+    // How far behind the pen a StrokeFilter's output runs, and how much it wobbles about.
+    static final class FilterResult {
+        String name;
+        float lagMs, jitterPx;
+
+        @Override
+        public String toString() {
+            return String.format("%-24s %6.1f ms lag %6.2f px jitter", name, lagMs, jitterPx);
+        }
+    }
+
+    private StrokeBenchmark() { }
+
+    // Runs every pen type over the synthetic streams and the recording (if any), and logs a
+    // report, which is also returned.
+    static String runAll(Slate slate, int w, int h, float[] recording) {
+        final StringBuilder sb = new StringBuilder();
+        final float[][] streams = {
+            scribble(w, h, 40, 200, 0),
+            spiral(w, h, 2000),
+            recording,
+        };
+        final String[] streamNames = { "scribble", "spiral", "recorded" };
+        for (int s=0; s<streams.length; s++) {
+            if (streams[s] == null) continue;
+            for (int p=0; p<PEN_TYPES.length; p++) {
+                for (int t=0; t<TOOL_TYPES.length; t++) {
+                    final IntRasterCanvas canvas = new IntRasterCanvas(w, h);
+                    final Result r = run(slate, canvas, PEN_TYPES[p], TOOL_TYPES[t], streams[s],
+                            ITERATIONS);
+                    r.name = PEN_NAMES[p] + "/" + streamNames[s] + "/" + TOOL_NAMES[t];
+                    Log.v(TAG, r.toString());
+                    sb.append(r.toString()).append('\n');
+                    canvas.recycleBitmaps();
+                }
+            }
+            for (int f=0; f<FILTER_TYPES.length; f++) {
+                final FilterResult r = measureFilter(FILTER_TYPES[f], streams[s],
+                        FILTER_NOISE_PX, 0);
+                r.name = FILTER_NAMES[f] + "/" + streamNames[s];
+                Log.v(TAG, r.toString());
+                sb.append(r.toString()).append('\n');
+            }
+        }
+        checkStampAllocs(slate, w, h, streams[1], sb);
+        return sb.toString();
+    }
+
+    // Stamps each pen through a TiledBitmapCanvas, which is what the slate really draws on, and
+    // checks that once everything is warmed up, laying down ink allocates nothing at all. If
+    // anything does, this throws (after logging every pen), taking the benchmark down with it.
+    static void checkStampAllocs(Slate slate, int w, int h, float[] stream, StringBuilder sb) {
+        final StringBuilder failures = new StringBuilder();
+        for (int p=0; p<PEN_TYPES.length; p++) {
+            for (int t=0; t<TOOL_TYPES.length; t++) {
+                final TiledBitmapCanvas canvas =
+                        new TiledBitmapCanvas(w, h, Bitmap.Config.ARGB_8888);
+                final Result r = run(slate, canvas, PEN_TYPES[p], TOOL_TYPES[t], stream,
+                        ITERATIONS);
+                r.name = PEN_NAMES[p] + "/tiled/" + TOOL_NAMES[t];
+                final String line;
+                if (r.allocCount == 0) {
+                    line = r.name + ": no allocations per stamp";
+                    Log.v(TAG, line);
+                } else {
+                    line = String.format("%s: %.3f allocations per stamp (%d over %d stamps)",
+                            r.name, r.allocsPerStamp(), r.allocCount, r.stamps);
+                    Log.e(TAG, line);
+                    failures.append(line).append('\n');
+                }
+                sb.append(line).append('\n');
+                canvas.recycleBitmaps();
+            }
+        }
+        if (failures.length() > 0) {
+            throw new AssertionError("stamping allocates:\n" + failures);
+        }
+    }
+
+    static Result run(Slate slate, CanvasLite target, int penType, int tool, float[] stream,
+            int iterations) {
+        final CountingCanvas canvas = new CountingCanvas(target);
+        final Spot spot = new Spot();
+        final Result result = new Result();
+
+        // once through to warm up, then for real
+        for (int i=-1; i<iterations; i++) {
+            final Pen pen = slate.newOffscreenPen(canvas, penType, Color.BLACK);
+            canvas.stamps = 0;
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            final long start = System.nanoTime();
+            final long points = feed(pen, spot, stream, tool);
+            final long nanos = System.nanoTime() - start;
+            Debug.stopAllocCounting();
+            if (i < 0) continue;
+            result.points += points;
+            result.stamps += canvas.stamps;
+            result.nanos += nanos;
+            result.allocBytes += Debug.getThreadAllocSize();
+            result.allocCount += Debug.getThreadAllocCount();
+        }
+        return result;
+    }
+
+    private static long feed(Pen pen, Spot spot, float[] stream, int tool) {
+        long time = 0;
+        long points = 0;
+        boolean down = false;
+        for (int i=0; i+2<stream.length; i+=3) {
+            time += SAMPLE_INTERVAL_MS;
+            if (Float.isNaN(stream[i])) {
+                if (down) pen.finish(time);
+                down = false;
+                continue;
+            }
+            spot.update(stream[i], stream[i+1], 0, stream[i+2], time, tool);
+            pen.add(spot);
+            down = true;
+            points++;
+        }
+        if (down) pen.finish(time);
+        return points;
+    }
+
+    // Feeds stream, plus gaussian noise, through a StrokeFilter. The lag is the time shift that
+    // best lines its output up with the clean stream. The jitter is the rms second difference of
+    // the output's error, i.e. the part of it that changes from one sample to the next: noise
+    // let through, not the smooth corner-cutting that comes with lag. Samples are fed as finger
+    // input, since SpotFilter passes stylus samples straight through.
+    static FilterResult measureFilter(int type, float[] stream, float noise, long seed) {
+        final int n = stream.length / 3;
+        final float[] outX = new float[n], outY = new float[n];
+        final int[] strokeStart = new int[n];
+        final float[] last = new float[2];
+        final StrokeFilter filter = Slate.newStrokeFilter(type, new SpotFilter.Plotter() {
+            @Override
+            public void plot(Spot s) {
+                last[0] = s.x;
+                last[1] = s.y;
+            }
+        });
+        final Random rand = new Random(seed);
+        long time = 0;
+        int start = -1;
+        for (int i=0; i<n; i++) {
+            time += SAMPLE_INTERVAL_MS;
+            final int k = i * 3;
+            if (Float.isNaN(stream[k])) {
+                if (start >= 0) filter.finish();
+                start = -1;
+                strokeStart[i] = -1;
+                continue;
+            }
+            if (start < 0) start = i;
+            strokeStart[i] = start;
+            filter.add(stream[k] + (float) rand.nextGaussian() * noise,
+                    stream[k+1] + (float) rand.nextGaussian() * noise,
+                    0, stream[k+2], time, MotionEvent.TOOL_TYPE_FINGER);
+            outX[i] = last[0];
+            outY[i] = last[1];
+        }
+        if (start >= 0) filter.finish();
+
+        double jitter = 0;
+        int count = 0;
+        for (int i=0; i<n; i++) {
+            if (strokeStart[i] < 0 || i - 2 < strokeStart[i]) continue;
+            final int k = i * 3;
+            final float ex = (outX[i] - stream[k]) - 2 * (outX[i-1] - stream[k-3])
+                    + (outX[i-2] - stream[k-6]);
+            final float ey = (outY[i] - stream[k+1]) - 2 * (outY[i-1] - stream[k-2])
+                    + (outY[i-2] - stream[k-5]);
+            jitter += ex*ex + ey*ey;
+            count++;
+        }
+
+        double bestErr = Double.MAX_VALUE;
+        int bestShift = 0;
+        for (int q=0; q<=FILTER_MAX_LAG_STEPS; q++) {
+            final double err = shiftedError(stream, outX, outY, strokeStart, q / 4f);
+            if (err < bestErr) {
+                bestErr = err;
+                bestShift = q;
+            }
+        }
+        final FilterResult result = new FilterResult();
+        result.lagMs = bestShift / 4f * SAMPLE_INTERVAL_MS;
+        result.jitterPx = (count > 0) ? (float) Math.sqrt(jitter / count) : 0;
+        return result;
+    }
+
+    // Mean squared distance between each output point and where the clean stream was shift
+    // samples earlier (interpolated), over the points that have that much stroke behind them.
+    private static double shiftedError(float[] stream, float[] outX, float[] outY,
+            int[] strokeStart, float shift) {
+        final int whole = (int) shift;
+        final float frac = shift - whole;
+        double sum = 0;
+        int count = 0;
+        for (int i=0; i<outX.length; i++) {
+            final int a = i - whole - ((frac > 0) ? 1 : 0);
+            if (strokeStart[i] < 0 || a < strokeStart[i]) continue;
+            final int b = i - whole;
+            final float ax = stream[a*3], ay = stream[a*3+1];
+            final float x = stream[b*3] + (ax - stream[b*3]) * frac;
+            final float y = stream[b*3+1] + (ay - stream[b*3+1]) * frac;
+            final float dx = outX[i] - x, dy = outY[i] - y;
+            sum += dx*dx + dy*dy;
+            count++;
+        }
+        return (count > 0) ? sum / count : Double.MAX_VALUE;
+    }
+
+    // Random wandering strokes with varying pressure.
+    static float[] scribble(int w, int h, int strokes, int samplesPerStroke, long seed) {
+        final Random rand = new Random(seed);
+        final float[] stream = new float[strokes * (samplesPerStroke + 1) * 3];
+        int k = 0;
+        for (int s=0; s<strokes; s++) {
+            float x = rand.nextFloat() * w, y = rand.nextFloat() * h;
+            float dx = 0, dy = 0;
+            for (int i=0; i<samplesPerStroke; i++) {
+                dx = dx * 0.9f + (rand.nextFloat() - 0.5f) * 4;
+                dy = dy * 0.9f + (rand.nextFloat() - 0.5f) * 4;
+                x = Math.max(0, Math.min(w - 1, x + dx));
+                y = Math.max(0, Math.min(h - 1, y + dy));
+                stream[k++] = x;
+                stream[k++] = y;
+                stream[k++] = 0.5f + 0.5f * (float) Math.sin(i * 0.05f);
+            }
+            stream[k++] = Float.NaN;
+            stream[k++] = 0;
+            stream[k++] = 0;
+        }
+        return stream;
+    }
+
+    // One long stroke spiraling out from the middle, speeding up as it goes.
+    static float[] spiral(int w, int h, int samples) {
+        final float[] stream = new float[samples * 3];
+        final float cx = w / 2f, cy = h / 2f;
+        final float maxR = Math.min(w, h) / 2f - 1;
+        for (int i=0, k=0; i<samples; i++) {
+            final float f = (float) i / samples;
+            final double theta = f * 40 * Math.PI;
+            stream[k++] = cx + (float) Math.cos(theta) * f * maxR;
+            stream[k++] = cy + (float) Math.sin(theta) * f * maxR;
+            stream[k++] = f;
+        }
+        return stream;
+    }
+
+    // Keeps the most recent real input around so that it can be replayed as a benchmark. Strokes
+    // may be recorded on the render thread while the UI thread takes a copy.
+    static final class Recorder {
+        private static final int MAX_SAMPLES = 20000;
+        private final float[] mSamples = new float[MAX_SAMPLES * 3];
+        private int mCount;
+
+        synchronized void add(Spot s) {
+            if (mCount >= MAX_SAMPLES) return;
+            final int k = mCount++ * 3;
+            mSamples[k] = s.x;
+            mSamples[k+1] = s.y;
+            mSamples[k+2] = s.pressure;
+        }
+
+        synchronized void endStroke() {
+            if (mCount == 0 || mCount >= MAX_SAMPLES) return;
+            if (Float.isNaN(mSamples[(mCount - 1) * 3])) return;
+            final int k = mCount++ * 3;
+            mSamples[k] = Float.NaN;
+        }
+
+        synchronized float[] toStream() {
+            if (mCount == 0) return null;
+            final float[] stream = new float[mCount * 3];
+            System.arraycopy(mSamples, 0, stream, 0, stream.length);
+            return stream;
+        }
+    }
+
+    // Counts the stamps on their way through to the real canvas.
+    static final class CountingCanvas implements CanvasLite {
+        private final CanvasLite mTarget;
+        long stamps;
+
+        CountingCanvas(CanvasLite target) {
+            mTarget = target;
+        }
+
+        @Override
+        public void drawRect(float l, float t, float r, float b, Paint paint) {
+            stamps++;
+            mTarget.drawRect(l, t, r, b, paint);
+        }
+        @Override
+        public void drawCircle(float x, float y, float r, Paint paint) {
+            stamps++;
+            mTarget.drawCircle(x, y, r, paint);
+        }
+        @Override
+        public void drawColor(int color, PorterDuff.Mode mode) {
+            mTarget.drawColor(color, mode);
+        }
+        @Override
+        public void drawBitmap(Bitmap bitmap, Rect src, RectF dst, Paint paint) {
+            stamps++;
+            mTarget.drawBitmap(bitmap, src, dst, paint);
+        }
+        @Override
+        public void drawBitmap(Bitmap bitmap, float left, float top, Paint paint) {
+            stamps++;
+            mTarget.drawBitmap(bitmap, left, top, paint);
+        }
+        @Override
+        public void drawBitmap(Bitmap bitmap, Matrix matrix, Paint paint) {
+            mTarget.drawBitmap(bitmap, matrix, paint);
+        }
+        @Override
+        public void drawTo(Canvas drawCanvas, float left, float top, Paint paint,
+                boolean dirtyOnly) {
+            mTarget.drawTo(drawCanvas, left, top, paint, dirtyOnly);
+        }
+        @Override
+        public void drawTo(Canvas drawCanvas, float left, float top, Paint paint,
+                boolean dirtyOnly, RectF visible) {
+            mTarget.drawTo(drawCanvas, left, top, paint, dirtyOnly, visible);
+        }
+        @Override
+        public Bitmap toBitmap() {
+            return mTarget.toBitmap();
+        }
+        @Override
+        public void recycleBitmaps() {
+            mTarget.recycleBitmaps();
+        }
+        @Override
+        public int getWidth() {
+            return mTarget.getWidth();
+        }
+        @Override
+        public int getHeight() {
+            return mTarget.getHeight();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.markers;
+
+// Turns raw input samples into the points that actually get drawn, which it hands to a
+// SpotFilter.Plotter. Implementations trade smoothness for lag (see SpotFilter, OneEuroFilter,
+// KalmanFilter); Slate picks one for each tool type.
+public interface StrokeFilter {
+    public void add(Spot s);
+    public void add(float x, float y, float size, float pressure, long time, int tool);
+    // End of the stroke; plot whatever is still held back.
+    public void finish();
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.markers;
+
+// A fixed-size ring of touch records going from the UI thread (the only producer) to the
+// render thread (the only consumer), with no locks: each side owns one index, and the volatile
+// write of that index is what hands the records over. Records live in parallel primitive
+// arrays, so nothing is allocated per record.
+//
+// The producer also keeps track of how full the queue gets, and of how often it had to wait
+// because the consumer had fallen a whole queue behind.
+final class StrokeQueue {
+    public static final int OP_ADD = 1;     // a sample for a pointer's stroke
+    public static final int OP_FINISH = 2;  // the pointer is up
+    public static final int OP_COMMIT = 3;  // TiledBitmapCanvas.commit()
+
+    private final int mMask;
+    private final int[] mOp, mPointer, mTool;
+    private final float[] mX, mY, mSize, mPressure;
+    private final long[] mTime;
+
+    private volatile long mHead; // next to read; written only by the consumer
+    private volatile long mTail; // next to write; written only by the producer
+
+    // producer-side stats
+    private int mMaxDepth;
+    private long mDepthSum, mOffers, mStalls;
+
+    public StrokeQueue(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        mMask = capacity - 1;
+        mOp = new int[capacity];
+        mPointer = new int[capacity];
+        mTool = new int[capacity];
+        mX = new float[capacity];
+        mY = new float[capacity];
+        mSize = new float[capacity];
+        mPressure = new float[capacity];
+        mTime = new long[capacity];
+    }
+
+    // Producer only. Returns false, and counts a stall, if the queue is full.
+    public boolean offer(int op, int pointer, float x, float y, float size, float pressure,
+            long time, int tool) {
+        final long tail = mTail;
+        final int depth = (int) (tail - mHead);
+        if (depth > mMask) {
+            mStalls++;
+            return false;
+        }
+        final int i = (int) tail & mMask;
+        mOp[i] = op;
+        mPointer[i] = pointer;
+        mX[i] = x;
+        mY[i] = y;
+        mSize[i] = size;
+        mPressure[i] = pressure;
+        mTime[i] = time;
+        mTool[i] = tool;
+        mTail = tail + 1; // publish
+
+        mOffers++;
+        mDepthSum += depth + 1;
+        if (depth + 1 > mMaxDepth) mMaxDepth = depth + 1;
+        return true;
+    }
+
+    // Consumer only. Copies the next record's sample into out and returns its op, with the
+    // pointer id in the upper 16 bits, or 0 if the queue is empty.
+    public int poll(Spot out) {
+        final long head = mHead;
+        if (head == mTail) return 0;
+        final int i = (int) head & mMask;
+        final int op = mOp[i] | (mPointer[i] << 16);
+        out.update(mX[i], mY[i], mSize[i], mPressure[i], mTime[i], mTool[i]);
+        mHead = head + 1; // hand the slot back
+        return op;
+    }
+
+    public boolean isEmpty() {
+        return mHead == mTail;
+    }
+
+    // Producer only.
+    @Override
+    public String toString() {
+        return String.format("stroke queue: %d/%d max, %.1f mean depth, %d stalls in %d records",
+                mMaxDepth, mMask + 1, (mOffers > 0) ? (double) mDepthSum / mOffers : 0.0,
+                mStalls, mOffers);
+    }
+
+    public void resetStats() {
+        mMaxDepth = 0;
+        mDepthSum = mOffers = mStalls = 0;
+    }
+}
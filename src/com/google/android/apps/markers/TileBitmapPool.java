@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.markers;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+
+// Tile-sized bitmaps that nobody is using right now. Clearing the canvas or loading a drawing
+// into it frees and then needs a whole screen's worth of tiles at once; reusing them saves the
+// allocations, and the garbage collections that come after. Contents of a pooled bitmap are
+// undefined. Used from both the UI thread and the helper thread.
+final class TileBitmapPool {
+    private final int mSize;
+    private final Config mConfig;
+    private final Bitmap[] mBitmaps;
+    private int mCount;
+    private int mHits, mMisses;
+
+    public TileBitmapPool(int tileSize, Config config, int maxBitmaps) {
+        mSize = tileSize;
+        mConfig = config;
+        mBitmaps = new Bitmap[maxBitmaps];
+    }
+
+    // Returns a bitmap from the pool, or a new one if it's empty (or null if that fails).
+    public synchronized Bitmap obtain() {
+        if (mCount > 0) {
+            mHits++;
+            final Bitmap b = mBitmaps[--mCount];
+            mBitmaps[mCount] = null;
+            return b;
+        }
+        mMisses++;
+        return Bitmap.createBitmap(mSize, mSize, mConfig);
+    }
+
+    // Takes back a bitmap, or recycles it if the pool is full.
+    public synchronized void release(Bitmap b) {
+        if (b == null) return;
+        if (mCount < mBitmaps.length) {
+            mBitmaps[mCount++] = b;
+        } else {
+            b.recycle();
+        }
+    }
+
+    // Recycles everything in the pool.
+    public synchronized void clear() {
+        while (mCount > 0) {
+            mBitmaps[--mCount].recycle();
+            mBitmaps[mCount] = null;
+        }
+    }
+
+    public synchronized int getHits() {
+        return mHits;
+    }
+
+    public synchronized int getMisses() {
+        return mMisses;
+    }
+
+    public synchronized int getSize() {
+        return mCount;
+    }
+}
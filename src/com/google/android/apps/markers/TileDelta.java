@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.markers;
+
+// XOR + run-length coding of the difference between two tile rasters.
+//
+// A stroke only changes a fraction of the pixels in a tile, so the XOR of two consecutive versions
+// is mostly zero, and the part that isn't is mostly runs of the same value (solid ink laid over
+// a blank or solid area). Since XOR is its own inverse the same delta takes you from the newer
+// version to the older one and back again.
+//
+// The encoding is a sequence of int words. Each op word holds (count << 2 | op):
+//   OP_SKIP: count pixels are unchanged
+//   OP_FILL: count pixels are XORed with the single word that follows
+//   OP_COPY: count pixels are XORed with the count words that follow
+final class TileDelta {
+    static final int OP_SKIP = 0;
+    static final int OP_FILL = 1;
+    static final int OP_COPY = 2;
+
+    private static final int MIN_FILL = 3;
+
+    private TileDelta() { }
+
+    // Scratch space needed by encode() for n pixels, worst case.
+    static int scratchSize(int n) {
+        return n * 2 + 2;
+    }
+
+    // Encodes a ^ b over the first n pixels. The result is trimmed to size.
+    static int[] encode(int[] a, int[] b, int n, int[] scratch) {
+        int o = 0;
+        int i = 0;
+        while (i < n) {
+            final int v = a[i] ^ b[i];
+            int j = i + 1;
+            while (j < n && (a[j] ^ b[j]) == v) j++;
+            final int run = j - i;
+            if (v == 0) {
+                scratch[o++] = (run << 2) | OP_SKIP;
+                i = j;
+            } else if (run >= MIN_FILL) {
+                scratch[o++] = (run << 2) | OP_FILL;
+                scratch[o++] = v;
+                i = j;
+            } else {
+                // literals, up to the next zero or the next run worth filling
+                int k = i;
+                while (k < n) {
+                    final int w = a[k] ^ b[k];
+                    if (w == 0) break;
+                    if (k + 2 < n && (a[k+1] ^ b[k+1]) == w && (a[k+2] ^ b[k+2]) == w) break;
+                    k++;
+                }
+                scratch[o++] = ((k - i) << 2) | OP_COPY;
+                for (; i < k; i++) {
+                    scratch[o++] = a[i] ^ b[i];
+                }
+            }
+        }
+        final int[] delta = new int[o];
+        System.arraycopy(scratch, 0, delta, 0, o);
+        return delta;
+    }
+
+    // XORs the delta into pixels, in place.
+    static void apply(int[] delta, int[] pixels) {
+        int p = 0;
+        int d = 0;
+        final int N = delta.length;
+        while (d < N) {
+            final int op = delta[d] & 3;
+            final int count = delta[d] >>> 2;
+            d++;
+            switch (op) {
+            case OP_SKIP:
+                p += count;
+                break;
+            case OP_FILL:
+                final int v = delta[d++];
+                for (final int end = p + count; p < end; p++) {
+                    pixels[p] ^= v;
+                }
+                break;
+            case OP_COPY:
+                for (final int end = p + count; p < end; p++) {
+                    pixels[p] ^= delta[d++];
+                }
+                break;
+            }
+        }
+    }
+
+    // Bytes of heap held by an encoded delta, not counting the array header.
+    static int sizeOf(int[] delta) {
+        return delta.length * 4;
+    }
+}
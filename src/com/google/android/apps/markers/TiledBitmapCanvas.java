@@ -1,10 +1,22 @@
 package com.google.android.apps.markers;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.graphics.*;
 import android.graphics.Bitmap.Config;
-import android.util.FloatMath;
 import android.util.Log;
 
 public class TiledBitmapCanvas implements CanvasLite {
@@ -16,29 +28,200 @@ public class TiledBitmapCanvas implements CanvasLite {
     public static final int DEFAULT_TILE_SIZE = 256;
     private static final float INVALIDATE_PADDING = 4.0f;
     public static final int DEFAULT_NUM_VERSIONS = 10;
+    public static final long UNLIMITED_HISTORY_BYTES = Long.MAX_VALUE;
+    // Drawing may come from several threads at once, as long as nobody commits, steps, or draws
+    // the canvas to the screen meanwhile. A stamp holds the lock stripe of each tile it touches
+    // while it draws there; the stripes interleave in both directions, so neighboring tiles never
+    // share one.
+    private static final int TILE_LOCK_SHIFT = 3;
+    private static final int TILE_LOCK_MASK = (1 << TILE_LOCK_SHIFT) - 1;
+    private final Object[] mTileLocks = new Object[1 << (2 * TILE_LOCK_SHIFT)];
+    {
+        for (int i=0; i<mTileLocks.length; i++) mTileLocks[i] = new Object();
+    }
+    // guards the tile table and the start of a new version against concurrent writers
+    private final Object mWriteLock = new Object();
 
     private boolean mDebug = false;
     private int mTileSize = DEFAULT_TILE_SIZE;
+    private int mTileShift; // tiles are 1 << mTileShift pixels on a side
     private int mMaxVersions = DEFAULT_NUM_VERSIONS;
+    private long mMaxHistoryBytes = UNLIMITED_HISTORY_BYTES;
+
+    // Optional on-disk tier for history that doesn't fit in mMaxHistoryBytes.
+    private HistorySpill mSpill;
+
+    // bytes held by compressed undo deltas, across all tiles
+    private final AtomicLong mHistoryBytes = new AtomicLong();
+
+    private static final Paint sCopyPaint = new Paint();
+    static {
+        sCopyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    // Zoomed out, tiles are drawn from reduced copies (1/2, 1/4 size) so that each frame reads
+    // about as many pixels as it shows.
+    public static final int MAX_MIP_LEVEL = 2;
+    private static final Paint sMipPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    static {
+        sMipPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+    private static final Paint sClearPaint = new Paint();
+    static {
+        sClearPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+    }
+    private int mMipLevel = 0;
+    private final Rect mMipSrc = new Rect(), mMipDst = new Rect();
+
+    // Background thread that prepares copy-on-write snapshots after each commit.
+    private ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, TAG);
+            t.setPriority(Thread.MIN_PRIORITY);
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // Threads that whole-canvas operations (drawColor, drawBitmap with a matrix, loading a
+    // bitmap, toBitmap) share their tiles with, a band of rows each; the caller takes a band too.
+    // Shared by every canvas, and created the first time one needs it.
+    private static final int MAX_BAND_THREADS = 4; // including the caller
+    private static ThreadPoolExecutor sBandPool;
+    private static int sBandThreads = -1;
+
+    private static synchronized ThreadPoolExecutor getBandPool() {
+        if (sBandThreads < 0) {
+            sBandThreads = min(Runtime.getRuntime().availableProcessors(), MAX_BAND_THREADS) - 1;
+            if (sBandThreads > 0) {
+                sBandPool = new ThreadPoolExecutor(sBandThreads, sBandThreads,
+                        1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                final Thread t = new Thread(r, TAG + "/band");
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        });
+            }
+        }
+        return sBandPool;
+    }
+
+    // Some work on rows (or tiles) [from, to).
+    interface BandOp {
+        void run(int from, int to);
+    }
+
+    // Splits [from, to) into contiguous bands, runs op on each in parallel, and returns once
+    // they're all done. Drawing into different tiles at once is fine (see mTileLocks); the caller
+    // has to keep everybody else off the canvas meanwhile.
+    static void forEachBand(int from, int to, final BandOp op) {
+        final int n = to - from;
+        final ThreadPoolExecutor pool = (n > 1) ? getBandPool() : null;
+        if (pool == null) {
+            op.run(from, to);
+            return;
+        }
+        final int bands = min(n, sBandThreads + 1);
+        final CountDownLatch done = new CountDownLatch(bands - 1);
+        final RuntimeException[] failure = new RuntimeException[1];
+        int lo = from + n / bands; // the first band is ours
+        for (int b = 1; b < bands; b++) {
+            final int bandFrom = lo, bandTo = from + (int) ((long) n * (b + 1) / bands);
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        op.run(bandFrom, bandTo);
+                    } catch (RuntimeException e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            lo = bandTo;
+        }
+        op.run(from, from + n / bands);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        synchronized (failure) {
+            if (failure[0] != null) throw failure[0];
+        }
+    }
 
     private class Tile {
         private class Version {
             int version; 
             Canvas canvas;
             Bitmap bitmap;
-            public Version(int version) {
+            // Once the next-newer version is frozen, an older version gives up its bitmap and
+            // keeps only the XOR delta against that neighbor (see TileDelta).
+            int[] delta;
+            // ...or, once it's been pushed out of the heap budget, a handle to that delta in the
+            // spill file.
+            long spill = -1;
+            int spillLength;
+            // A uniform version is a solid field of this color, and needs no pixels to show it.
+            boolean uniform;
+            int color;
+            public Version(int version, int color) {
                 this.version = version;
-                this.bitmap = Bitmap.createBitmap(mTileSize, mTileSize, mConfig);
-                if (this.bitmap != null) {
-                    this.canvas = new Canvas(this.bitmap);
-                    this.canvas.translate(-x*mTileSize, -y*mTileSize);
-                }
+                this.color = color;
+                this.uniform = true;
+            }
+            public Version(int version, Bitmap bitmap, Canvas canvas) {
+                this.version = version;
+                this.bitmap = bitmap;
+                this.canvas = canvas;
+            }
+            public boolean isDelta() {
+                return delta != null || spill >= 0;
             }
         }
         int x, y;
         int top, bottom;
         boolean dirty;
+        boolean written; // top version has been drawn into since the last commit
         ArrayList<Version> versions;
+
+        // Undo and redo just move cur, the index of the current version; anything newer is kept
+        // around for redo until the next write. The live bitmap belongs to versions[shown] and is
+        // brought over to cur (see sync()) the next time somebody needs the pixels.
+        int cur, shown;
+
+        // Copy-on-write: the newest version always owns the "live" bitmap, and a new version
+        // simply takes it over. The pixels of the version being superseded are preserved by
+        // swapping in a snapshot that the helper thread copied after the last commit(), so the
+        // first stamp of a stroke no longer has to blit a whole tile. Guarded by the tile lock.
+        Bitmap snapshot;
+        Canvas snapshotCanvas;
+        boolean snapshotPending;
+        // the version below the top still needs to be delta-coded by the helper
+        boolean compressPending;
+        // the bitmap of an evicted version, kept around to receive the next snapshot
+        Version spare;
+
+        // Reduced copies of the current version, built on demand by getMip(). generation is
+        // bumped whenever the current pixels change, which makes them stale.
+        int generation;
+        Bitmap[] mips;
+        Canvas[] mipCanvases;
+        int[] mipGenerations;
+
         private String debugVersions() {
             StringBuffer sb = new StringBuffer();
             sb.append("bot=");
@@ -47,10 +230,17 @@ public class TiledBitmapCanvas implements CanvasLite {
             sb.append(top);
             sb.append(" [");
             for (int i=0; i<versions.size(); i++) {
+                final Version v = versions.get(i);
                 if (i > 0) sb.append(" ");
-                sb.append(versions.get(i).version);
+                if (i == cur) sb.append("*");
+                sb.append(v.version);
+                if (v.uniform) sb.append("u");
+                if (v.delta != null) sb.append("d");
+                else if (v.spill >= 0) sb.append("s");
             }
             sb.append("]");
+            if (snapshot != null) sb.append(" +snap");
+            if (snapshotPending) sb.append(" (pending)");
             return sb.toString();
         }
         public Tile(int x, int y, int version) {
@@ -59,30 +249,44 @@ public class TiledBitmapCanvas implements CanvasLite {
             versions = new ArrayList<Version>(mMaxVersions);
             bottom = version;
             createVersion(version); // sets top
-            if (top < 0) {
-                throw new OutOfMemoryError("Could not create bitmap for tile " + x + "," + y);
-            }
         };
-        private Version createVersion(int version) {
+        private synchronized Version createVersion(int version) {
+            // don't let the helper look at the old top while we're starting on the new one
+            awaitSnapshot();
+            discardRedo();
             Version v;
             final int N = versions.size();
-            if (N == mMaxVersions) {
-                // recycle the last version object & bitmap
-                v = versions.get(N-1);
-                versions.remove(N-1);
-                v.version = version;
-                bottom = versions.get(N-2).version;
-                v.bitmap.eraseColor(0);
+            if (N == 0) {
+                // a new tile is blank, and costs nothing until something is drawn on it
+                v = new Version(version, Color.TRANSPARENT);
             } else {
-                v = new Version(version);
-                if (v.bitmap == null) {
-                    // XXX handle memory error
-                    return null;
+                final Version prev = versions.get(0);
+                if (prev.uniform) {
+                    v = new Version(version, prev.color);
+                } else {
+                    final Canvas copyCanvas = takeSnapshot();
+                    if (copyCanvas == null) {
+                        // XXX handle memory error
+                        return null;
+                    }
+                    if (isPinned(prev.bitmap)) {
+                        // a Snapshot is reading the live pixels, so they stay with the old
+                        // version and the new one starts out on the copy
+                        v = new Version(version, snapshot, copyCanvas);
+                    } else {
+                        // the new version takes over the live pixels; the old one keeps the copy
+                        v = new Version(version, prev.bitmap, prev.canvas);
+                        prev.bitmap = snapshot;
+                        prev.canvas = copyCanvas;
+                    }
+                    snapshot = null;
+                    snapshotCanvas = null;
                 }
-            }
-            if (versions.size() > 0) {
-                // XXX: this will be slow; maybe we can do the alloc & copy at commit time
-                v.canvas.drawBitmap(versions.get(0).bitmap, x*mTileSize, y*mTileSize, null);
+                if (N == mMaxVersions) {
+                    dropVersion(versions.remove(N-1));
+                    bottom = versions.get(N-2).version;
+                }
+                compressPending = true;
             }
             versions.add(0, v);
             top = version;
@@ -91,17 +295,284 @@ public class TiledBitmapCanvas implements CanvasLite {
             }
             return v;
         }
+        // Must be called with the tile lock held.
+        private void awaitSnapshot() {
+            while (snapshotPending) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        // Returns a canvas onto an up-to-date copy of the top version (now in this.snapshot).
+        // Normally the helper thread has already done the work; if it is still running we wait
+        // for it, and if it was never scheduled we fall back to copying right here.
+        private synchronized Canvas takeSnapshot() {
+            awaitSnapshot();
+            if (snapshot == null) {
+                if (DEBUG_VERBOSE) {
+                    Log.v(TAG, String.format("tile [%2d,%2d]: no snapshot ready; copying on demand", x, y));
+                }
+                copySnapshot();
+            }
+            return snapshotCanvas;
+        }
+        // Gives a uniform version real pixels, on its first non-uniform write.
+        // Must be called with the tile lock held.
+        private boolean materialize(Version v) {
+            final Version b = obtainSpare();
+            if (b == null) return false;
+            b.bitmap.eraseColor(v.color);
+            v.bitmap = b.bitmap;
+            v.canvas = b.canvas;
+            v.uniform = false;
+            return true;
+        }
+        // Must be called with the tile lock held.
+        private Version obtainSpare() {
+            Version b = spare;
+            spare = null;
+            if (b == null) {
+                final Bitmap bitmap = mPool.obtain();
+                if (bitmap == null) return null;
+                final Canvas canvas = new Canvas(bitmap);
+                canvas.translate(-x*mTileSize, -y*mTileSize);
+                b = new Version(-1, bitmap, canvas);
+            }
+            return b;
+        }
+        // Keeps a bitmap around to receive the next snapshot, or pools it if we have one.
+        // Must be called with the tile lock held.
+        private void releaseBitmap(Version v) {
+            if (v.bitmap == null) return;
+            if (spare == null && !isPinned(v.bitmap)) {
+                spare = new Version(-1, v.bitmap, v.canvas);
+            } else {
+                releaseToPool(v.bitmap);
+            }
+            v.bitmap = null;
+            v.canvas = null;
+        }
+        // Releases a version's storage. Must be called with the tile lock held.
+        private void dropVersion(Version v) {
+            forgetDelta(v);
+            releaseBitmap(v);
+        }
+        private void forgetDelta(Version v) {
+            if (v.delta != null) {
+                mHistoryBytes.addAndGet(-TileDelta.sizeOf(v.delta));
+                v.delta = null;
+            }
+            v.spill = -1; // the spill file is append-only; the space is just abandoned
+        }
+        // Pages a delta back in from the spill file if necessary.
+        private int[] getDelta(Version v) {
+            return (v.delta != null) ? v.delta : mSpill.read(v.spill, v.spillLength);
+        }
+        // Moves the in-heap deltas of versions at or below maxVersion out to the spill file.
+        // Returns false once the file is full.
+        public synchronized boolean spill(int maxVersion, HistorySpill file) {
+            for (int i=versions.size()-1; i>0; i--) {
+                final Version v = versions.get(i);
+                if (v.version > maxVersion) break;
+                if (v.delta == null) continue;
+                final long handle = file.append(v.delta);
+                if (handle < 0) return false;
+                v.spill = handle;
+                v.spillLength = v.delta.length;
+                mHistoryBytes.addAndGet(-TileDelta.sizeOf(v.delta));
+                v.delta = null;
+            }
+            return true;
+        }
+        // Turns the version being written into a solid field of color, dropping its pixels.
+        public synchronized void setUniform(int version, int color) {
+            final Version v = getVersion(version);
+            if (v == null) return;
+            v.uniform = true;
+            v.color = color;
+            releaseBitmap(v);
+            generation++;
+        }
+        // Fills pixels with the raw contents of a version that has a bitmap or is uniform.
+        // Must be called with the tile lock held.
+        private void readVersionPixels(Version v, int[] pixels, IntBuffer buf) {
+            if (v.bitmap != null) {
+                readPixels(v.bitmap, buf);
+            } else {
+                Arrays.fill(pixels, rawColor(v.color));
+            }
+        }
+        // Brings the live bitmap over to the current version by XORing in the deltas between
+        // versions[shown] and versions[cur], starting from a solid version on the way if there
+        // is one. Must be called with the tile lock held.
+        private void sync(int[] pixels, IntBuffer buf) {
+            if (shown == cur) return;
+            final Version from = versions.get(shown);
+            final Version to = versions.get(cur);
+            if (to.uniform) {
+                releaseBitmap(from);
+            } else {
+                final int older = (cur > shown) ? 1 : -1;
+                int k = cur;
+                while (k != shown && !versions.get(k).uniform) k -= older;
+                readVersionPixels(versions.get(k), pixels, buf);
+                if (older > 0) {
+                    for (k++; k <= cur; k++) {
+                        TileDelta.apply(getDelta(versions.get(k)), pixels);
+                    }
+                } else {
+                    for (; k > cur; k--) {
+                        TileDelta.apply(getDelta(versions.get(k)), pixels);
+                    }
+                }
+                final Version b;
+                if (from.bitmap != null && !isPinned(from.bitmap)) {
+                    b = new Version(-1, from.bitmap, from.canvas);
+                    from.bitmap = null;
+                    from.canvas = null;
+                } else {
+                    releaseBitmap(from);
+                    b = obtainSpare();
+                    if (b == null) return; // XXX handle memory error
+                }
+                writePixels(b.bitmap, buf);
+                to.bitmap = b.bitmap;
+                to.canvas = b.canvas;
+            }
+            shown = cur;
+        }
+        // sync() with the caller's scratch, which other tiles' writers may want at the same time.
+        // Must be called with the tile lock held.
+        private void syncForeground() {
+            if (shown == cur) return;
+            synchronized (mFgPixels) {
+                sync(mFgPixels, mFgPixelsBuf);
+            }
+        }
+        // Now that the top version is frozen, the one below it can be stored as a delta and its
+        // bitmap recycled into the snapshot. Solid versions get a delta too, so that redo can
+        // always walk forward from them. Runs on the helper thread with the tile lock held and
+        // the current version's pixels in mBgPixels.
+        private void compressPrevious() {
+            if (cur + 1 >= versions.size()) return;
+            final Version prev = versions.get(cur + 1);
+            if (prev.isDelta()) return;
+            readVersionPixels(prev, mBgPixels2, mBgPixels2Buf);
+            if (prev.bitmap != null && isBlank(mBgPixels2)) {
+                prev.uniform = true;
+                prev.color = Color.TRANSPARENT;
+            }
+            prev.delta = TileDelta.encode(mBgPixels2, mBgPixels, mBgPixels.length, mBgScratch);
+            mHistoryBytes.addAndGet(TileDelta.sizeOf(prev.delta));
+            releaseBitmap(prev);
+        }
+        // Drops every version that is older than the newest one at or below minVersion.
+        public synchronized void trim(int minVersion) {
+            syncForeground();
+            final int N = versions.size();
+            int k = -1;
+            for (int i=0; i<N; i++) {
+                if (versions.get(i).version <= minVersion) {
+                    k = i;
+                    break;
+                }
+            }
+            if (k < 0 || k < cur) return;
+            for (int i=N-1; i>k; i--) {
+                dropVersion(versions.remove(i));
+            }
+            bottom = versions.get(k).version;
+        }
+        // Forgets the versions above the current one. Must be called before writing a new one.
+        public synchronized void discardRedo() {
+            if (cur == 0) return;
+            syncForeground();
+            for (int k=0; k<cur; k++) {
+                dropVersion(versions.get(k));
+            }
+            versions.subList(0, cur).clear();
+            // its delta was against a version that's gone now
+            forgetDelta(versions.get(0));
+            cur = shown = 0;
+        }
+        // Must be called with the tile lock held.
+        private void copySnapshot() {
+            if (snapshot == null) {
+                final Version b = obtainSpare();
+                if (b == null) return;
+                snapshot = b.bitmap;
+                snapshotCanvas = b.canvas;
+            }
+            snapshotCanvas.drawBitmap(versions.get(cur).bitmap, x*mTileSize, y*mTileSize, sCopyPaint);
+        }
+        // Runs on the helper thread once the current version is frozen.
+        private synchronized void prepareNextVersion() {
+            if (!snapshotPending || versions.size() == 0) return;
+            sync(mBgPixels, mBgPixelsBuf);
+            final Version top = versions.get(cur);
+            readVersionPixels(top, mBgPixels, mBgPixelsBuf);
+            boolean liveIsSpare = false;
+            if (top.bitmap != null && isBlank(mBgPixels)) {
+                // the eraser took this tile all the way back to nothing. (The live bitmap may be
+                // mid-draw on the UI thread, so it becomes the spare rather than being recycled.)
+                if (spare != null) {
+                    mPool.release(spare.bitmap);
+                    spare = null;
+                }
+                top.uniform = true;
+                top.color = Color.TRANSPARENT;
+                releaseBitmap(top);
+                liveIsSpare = true;
+            }
+            compressPrevious();
+            compressPending = false;
+            if (top.uniform) {
+                // nothing to copy next time, so nothing much to hang on to
+                if (snapshot != null) {
+                    mPool.release(snapshot);
+                    snapshot = null;
+                    snapshotCanvas = null;
+                }
+                if (spare != null && !liveIsSpare) {
+                    mPool.release(spare.bitmap);
+                    spare = null;
+                }
+            } else {
+                copySnapshot();
+            }
+        }
+        // Queue a copy of the (now frozen) top version onto the helper thread.
+        public synchronized void scheduleSnapshot() {
+            if (snapshotPending || mExecutor == null) return;
+            snapshotPending = true;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (Tile.this) {
+                        prepareNextVersion();
+                        snapshotPending = false;
+                        Tile.this.notifyAll();
+                    }
+                }
+            });
+        }
+        private synchronized void discardSnapshot() {
+            // a snapshot of a version we're no longer on is useless, but its bitmap isn't
+            if (snapshot != null && spare == null) {
+                spare = new Version(-1, snapshot, snapshotCanvas);
+            } else if (snapshot != null) {
+                mPool.release(snapshot);
+            }
+            snapshot = null;
+            snapshotCanvas = null;
+        }
         private int findVersion(int version) {
             // short path
-            if (version >= top) return 0;
+            if (version == top) return cur;
             if (version < bottom) return -1;
-            if (mDebug) {
-                if (versions.size() > 0 && top != versions.get(0).version) {
-                    Log.e(TAG, String.format("internal inconsistency: tile (%d,%d) top=%d but version[0]=%d",
-                            x, y, top, versions.get(0).version));
-                }
-            }
-            for (int i=1; i<versions.size(); i++) {
+            for (int i=0; i<versions.size(); i++) {
                 final Version v = versions.get(i);
                 if (v.version <= version) {
                     return i;
@@ -115,7 +586,7 @@ public class TiledBitmapCanvas implements CanvasLite {
         }
         private Version getVersion(int version) {
             // short path
-            if (version == top) return versions.get(0);
+            if (version == top) return versions.get(cur);
 
             // another common situation
             if (version > top) return createVersion(version);
@@ -130,59 +601,310 @@ public class TiledBitmapCanvas implements CanvasLite {
             Log.e(TAG, "Tile.getVersion: don't have v" + version + " at " + x + "," + y);
             return null;
         }
-        public void clear() {
+        public synchronized void clear() {
+            // wait out any copy in flight before we pull the bitmaps out from under it
+            awaitSnapshot();
             for (int i=0; i<versions.size(); i++) {
-                versions.get(i).bitmap.recycle();
+                final Version v = versions.get(i);
+                if (v.bitmap != null) releaseToPool(v.bitmap);
+                if (v.delta != null) mHistoryBytes.addAndGet(-TileDelta.sizeOf(v.delta));
             }
             versions.clear();
+            cur = shown = 0;
+            if (snapshot != null) mPool.release(snapshot);
+            if (spare != null) mPool.release(spare.bitmap);
+            snapshot = null;
+            snapshotCanvas = null;
+            spare = null;
+            recycleMips();
         }
-        public Bitmap getBitmap() {
-            return versions.get(0).bitmap;
+        // The current version, with the live bitmap brought up to date. Its bitmap is null if the
+        // tile is currently a solid field of its color.
+        public synchronized Version current() {
+            syncForeground();
+            return versions.get(cur);
         }
-        public Bitmap getBitmap(int version) {
-            return getVersion(version).bitmap;
+        public synchronized Canvas getCanvas(int version) {
+            final Version v = getVersion(version);
+            if (v == null) return null;
+            syncForeground();
+            if (v.uniform && !materialize(v)) return null;
+            if (isPinned(v.bitmap) && !copyOnWrite(v)) return null;
+            generation++; // the caller is about to draw
+            return v.canvas;
         }
-        public Canvas getCanvas() {
-            return versions.get(0).canvas;
+        // Moves v onto a copy of its pixels, leaving the pinned original to its Snapshot.
+        // Must be called with the tile lock held.
+        private boolean copyOnWrite(Version v) {
+            final Version b = obtainSpare();
+            if (b == null) return false;
+            b.canvas.drawBitmap(v.bitmap, x*mTileSize, y*mTileSize, sCopyPaint);
+            releaseToPool(v.bitmap);
+            v.bitmap = b.bitmap;
+            v.canvas = b.canvas;
+            return true;
         }
-        public Canvas getCanvas(int version) {
-            return getVersion(version).canvas;
+        // Returns the current version reduced by 2^level, or null if it's uniform.
+        // Called on the UI thread, after current().
+        public synchronized Bitmap getMip(int level) {
+            final Version v = versions.get(cur);
+            if (v.bitmap == null) return null;
+            if (mips == null) {
+                mips = new Bitmap[MAX_MIP_LEVEL+1];
+                mipCanvases = new Canvas[MAX_MIP_LEVEL+1];
+                mipGenerations = new int[MAX_MIP_LEVEL+1];
+            }
+            Bitmap src = v.bitmap;
+            for (int l=1; l<=level; l++) {
+                final int size = mTileSize >> l;
+                if (mips[l] == null) {
+                    mips[l] = Bitmap.createBitmap(size, size, mConfig);
+                    if (mips[l] == null) return null;
+                    mipCanvases[l] = new Canvas(mips[l]);
+                    mipGenerations[l] = generation - 1;
+                }
+                if (mipGenerations[l] != generation) {
+                    mMipDst.set(0, 0, size, size);
+                    mipCanvases[l].drawBitmap(src, null, mMipDst, sMipPaint);
+                    mipGenerations[l] = generation;
+                }
+                src = mips[l];
+            }
+            return src;
+        }
+        private void recycleMips() {
+            if (mips == null) return;
+            for (int l=1; l<=MAX_MIP_LEVEL; l++) {
+                if (mips[l] != null) mips[l].recycle();
+            }
+            mips = null;
+            mipCanvases = null;
+            mipGenerations = null;
         }
-        public void revert(int toVersion) {
+        // Moves to another version we still have, older or newer. Returns true if the tile
+        // changed. The pixels themselves follow lazily.
+        public synchronized boolean revert(int toVersion) {
+            // the version we're leaving must have been delta-coded before we can walk away
+            while (compressPending && snapshotPending) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
             final int i = findVersion(toVersion);
             if (i < 0) {
                 // went backward past the end of our undo stack
                 Log.e(TAG, "cannot revert to version " + toVersion + " because it is before bottom: " + bottom);
+                return false;
+            }
+            if (i == cur) return false;
+            final int oldTop = top;
+            cur = i;
+            generation++;
+            top = versions.get(i).version;
+            written = false;
+            discardSnapshot();
+            scheduleSnapshot();
+            if (mDebug) {
+                Log.v(TAG, String.format("   tile [%2d,%2d]: revert(%d) old top %d, %s",
+                        x, y, toVersion, oldTop,
+                        debugVersions()));
+            }
+            return true;
+        }
+    }
+    // Bitmaps that some Snapshot is reading. The canvas never draws into one of these or hands
+    // it out again; one that it lets go of meanwhile goes back to the pool after the last
+    // Snapshot is done with it.
+    private static class Pin {
+        int count;
+        boolean released;
+    }
+    private final IdentityHashMap<Bitmap, Pin> mPins = new IdentityHashMap<Bitmap, Pin>();
+    private volatile int mPinCount; // so that getCanvas() needn't look when there are none
+
+    private boolean isPinned(Bitmap b) {
+        if (mPinCount == 0 || b == null) return false;
+        synchronized (mPins) {
+            return mPins.containsKey(b);
+        }
+    }
+
+    private void pin(Bitmap b) {
+        synchronized (mPins) {
+            Pin p = mPins.get(b);
+            if (p == null) {
+                p = new Pin();
+                mPins.put(b, p);
+                mPinCount++;
+            }
+            p.count++;
+        }
+    }
+
+    private void unpin(Bitmap b) {
+        synchronized (mPins) {
+            final Pin p = mPins.get(b);
+            if (p == null || --p.count > 0) return;
+            mPins.remove(b);
+            mPinCount--;
+            if (!p.released) return;
+        }
+        mPool.release(b);
+    }
+
+    private void releaseToPool(Bitmap b) {
+        synchronized (mPins) {
+            final Pin p = mPins.get(b);
+            if (p != null) {
+                p.released = true;
                 return;
             }
-            if (i > 0) {
-                versions.subList(0, i).clear();
-                final int oldTop = top;
-                if (mDebug) {
-                    Log.v(TAG, String.format("   tile [%2d,%2d]: revert(%d) old top %d, %s",
-                            x, y, toVersion, oldTop,
-                            debugVersions()));
+        }
+        mPool.release(b);
+    }
+
+    // The canvas as it is right now, frozen, for reading on another thread while drawing goes
+    // on. Nothing is copied: the current version of every tile is either a solid color or a
+    // bitmap, and the bitmaps are pinned (see mPins) until release(). Like commit() or step(),
+    // this must not overlap any drawing.
+    public Snapshot snapshot() {
+        return new Snapshot();
+    }
+
+    public class Snapshot {
+        private final Rect mBounds;
+        private final int mCount;
+        private final int[] mTileX, mTileY, mColors;
+        private final Bitmap[] mBitmaps;
+        private boolean mReleased;
+
+        private Snapshot() {
+            mBounds = getContentBounds(new Rect());
+            mCount = mTileCount;
+            mTileX = new int[mCount];
+            mTileY = new int[mCount];
+            mColors = new int[mCount];
+            mBitmaps = new Bitmap[mCount];
+            for (int i=0; i<mCount; i++) {
+                final Tile t = mTiles[i];
+                mTileX[i] = t.x;
+                mTileY[i] = t.y;
+                synchronized (t) {
+                    final Tile.Version v = t.current();
+                    if (v.bitmap != null) {
+                        mBitmaps[i] = v.bitmap;
+                        pin(v.bitmap);
+                    } else {
+                        mColors[i] = v.color;
+                    }
+                }
+            }
+        }
+
+        public int getWidth() {
+            return mBounds.width();
+        }
+
+        public int getHeight() {
+            return mBounds.height();
+        }
+
+        public int getTileSize() {
+            return mTileSize;
+        }
+
+        // Draws the snapshot with its top left corner at (left, top).
+        public void drawTo(Canvas c, float left, float top) {
+            draw(c, left, top, 0, getHeight());
+        }
+
+        // Draws just rows [y0, y1) of the snapshot, with row y0 at the top of c.
+        public void drawRows(Canvas c, int y0, int y1) {
+            draw(c, 0, -y0, y0, y1);
+        }
+
+        private synchronized void draw(Canvas c, float left, float top, int y0, int y1) {
+            if (mReleased) throw new IllegalStateException("snapshot already released");
+            final Rect src = new Rect(), dst = new Rect();
+            final Paint uniform = new Paint();
+            c.save();
+            c.translate(left - mBounds.left, top - mBounds.top);
+            for (int i=0; i<mCount; i++) {
+                final int ty = mTileY[i] << mTileShift;
+                if (ty + mTileSize <= mBounds.top + y0 || ty >= mBounds.top + y1) continue;
+                dst.set(0, 0, mTileSize, mTileSize);
+                dst.offsetTo(mTileX[i] << mTileShift, ty);
+                src.set(0, 0, mTileSize, mTileSize);
+                if (!mInfinite) {
+                    dst.right = min(dst.right, mWidth);
+                    dst.bottom = min(dst.bottom, mHeight);
+                    src.set(0, 0, dst.width(), dst.height());
+                }
+                if (mBitmaps[i] != null) {
+                    c.drawBitmap(mBitmaps[i], src, dst, null);
+                } else if (mColors[i] != Color.TRANSPARENT) {
+                    uniform.setColor(mColors[i]);
+                    c.drawRect(dst, uniform);
                 }
-                top = versions.get(0).version;
+            }
+            c.restore();
+        }
+
+        public Bitmap toBitmap(int bgcolor) {
+            final Bitmap bitmap = Bitmap.createBitmap(getWidth(), getHeight(), mConfig);
+            if (bitmap == null) return null;
+            final Canvas c = new Canvas(bitmap);
+            if (bgcolor != Color.TRANSPARENT) c.drawColor(bgcolor);
+            drawTo(c, 0, 0);
+            return bitmap;
+        }
+
+        // Lets the canvas have its bitmaps back. The snapshot can't be drawn after this.
+        public synchronized void release() {
+            if (mReleased) return;
+            mReleased = true;
+            for (int i=0; i<mCount; i++) {
+                if (mBitmaps[i] != null) unpin(mBitmaps[i]);
+                mBitmaps[i] = null;
             }
         }
     }
+
     private Tile[] mTiles;
+    private int mTileCount;
+
+    // Where tiles get their bitmaps, and where they go when they're done with them.
+    private TileBitmapPool mPool;
+
+    // An infinite canvas has no edges: tiles (at any coordinates, negative too) are allocated on
+    // first write and found through an open-addressed hash of their coordinates, holding
+    // 1 + their index in mTiles (0 for an empty slot). Otherwise mTiles is a simple grid.
+    private boolean mInfinite;
+    private int[] mTileTable;
 
     private int mWidth, mHeight, mTilesX, mTilesY;
 
     private Config mConfig;
 
     private int mNewVersion = 0,
-                mBottomVersion = 0;
-    private boolean mVersionInUse = false;
+                mBottomVersion = 0,
+                mTopVersion = -1; // newest version we can redo to
+    private volatile boolean mVersionInUse = false;
+
+    // Raw (premultiplied) pixel scratch for delta coding: one set for the caller's thread
+    // (undo), one for the helper thread (compression).
+    private int[] mFgPixels, mBgPixels, mBgPixels2, mBgScratch;
+    private IntBuffer mFgPixelsBuf, mBgPixelsBuf, mBgPixels2Buf;
 
     public TiledBitmapCanvas(Bitmap bitmap, int tileSize, int maxVersions) {
         mWidth = bitmap.getWidth();
         mHeight = bitmap.getHeight();
         mConfig = bitmap.getConfig();
-        mTileSize = tileSize;
+        setTileSize(tileSize);
         mMaxVersions = maxVersions;
+        allocPixelBuffers();
         load(bitmap);
     }
 
@@ -191,11 +913,27 @@ public class TiledBitmapCanvas implements CanvasLite {
     }
 
     public TiledBitmapCanvas(int w, int h, Bitmap.Config config, int tileSize, int maxVersions) {
+        this(w, h, config, tileSize, maxVersions, UNLIMITED_HISTORY_BYTES);
+    }
+
+    // maxHistoryBytes caps the memory used by compressed undo history; the oldest versions are
+    // dropped once it is exceeded (maxVersions remains a hard cap on the count).
+    public TiledBitmapCanvas(int w, int h, Bitmap.Config config, int tileSize, int maxVersions,
+            long maxHistoryBytes) {
+        this(w, h, config, tileSize, maxVersions, maxHistoryBytes, false);
+    }
+
+    // If infinite, w and h just describe the initial page; drawing can go anywhere.
+    public TiledBitmapCanvas(int w, int h, Bitmap.Config config, int tileSize, int maxVersions,
+            long maxHistoryBytes, boolean infinite) {
         mWidth = w;
         mHeight = h;
         mConfig = config;
-        mTileSize = tileSize;
+        setTileSize(tileSize);
         mMaxVersions = maxVersions;
+        mMaxHistoryBytes = maxHistoryBytes;
+        mInfinite = infinite;
+        allocPixelBuffers();
         load(null);
     }
 
@@ -203,40 +941,254 @@ public class TiledBitmapCanvas implements CanvasLite {
         this(w, h, config, DEFAULT_TILE_SIZE, DEFAULT_NUM_VERSIONS);
     }
 
+    private void setTileSize(int tileSize) {
+        if (Integer.bitCount(tileSize) != 1) {
+            throw new IllegalArgumentException("tile size must be a power of two: " + tileSize);
+        }
+        mTileSize = tileSize;
+        mTileShift = Integer.numberOfTrailingZeros(tileSize);
+    }
+
+    private void allocPixelBuffers() {
+        final int n = mTileSize * mTileSize;
+        mFgPixels = new int[n];
+        mBgPixels = new int[n];
+        mBgPixels2 = new int[n];
+        mBgScratch = new int[TileDelta.scratchSize(n)];
+        mFgPixelsBuf = IntBuffer.wrap(mFgPixels);
+        mBgPixelsBuf = IntBuffer.wrap(mBgPixels);
+        mBgPixels2Buf = IntBuffer.wrap(mBgPixels2);
+    }
+
+    private static void readPixels(Bitmap b, IntBuffer buf) {
+        buf.rewind();
+        b.copyPixelsToBuffer(buf);
+    }
+
+    private static void writePixels(Bitmap b, IntBuffer buf) {
+        buf.rewind();
+        b.copyPixelsFromBuffer(buf);
+    }
+
+    private static boolean isBlank(int[] pixels) {
+        for (int i=0; i<pixels.length; i++) {
+            if (pixels[i] != 0) return false;
+        }
+        return true;
+    }
+
+    private Bitmap mProbe;
+    private IntBuffer mProbeBuf;
+    private int mProbeColor = Color.TRANSPARENT, mProbeRaw = 0;
+
+    // The raw (premultiplied, native-order) pixel value that a solid field of color would have.
+    private synchronized int rawColor(int color) {
+        if (color == mProbeColor) return mProbeRaw;
+        if (mProbe == null) {
+            mProbe = Bitmap.createBitmap(1, 1, mConfig);
+            mProbeBuf = IntBuffer.allocate(1);
+        }
+        mProbe.eraseColor(color);
+        readPixels(mProbe, mProbeBuf);
+        mProbeColor = color;
+        mProbeRaw = mProbeBuf.get(0);
+        return mProbeRaw;
+    }
+
+    // Sends history that overflows the heap budget to a memory-mapped file instead of throwing
+    // it away. Returns false if the file couldn't be set up.
+    // Spills history to file, which belongs to this canvas from now on: it's deleted by
+    // recycleBitmaps(), or if it can't be used. Only once per canvas, since history already in
+    // one file can't move to another.
+    public boolean setSpillFile(File file, long maxBytes) {
+        if (mSpill != null) throw new IllegalStateException("already spilling to a file");
+        try {
+            mSpill = new HistorySpill(file, maxBytes);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "can't spill history to " + file, e);
+            file.delete();
+            mSpill = null;
+            return false;
+        }
+    }
+
+    public void setMaxHistoryBytes(long maxBytes) {
+        mMaxHistoryBytes = maxBytes;
+    }
+
+    public int getBitmapPoolHits() {
+        return mPool.getHits();
+    }
+
+    public int getBitmapPoolMisses() {
+        return mPool.getMisses();
+    }
+
     public void setDebug(boolean d) {
         mDebug = d;
     }
 
     public void recycleBitmaps() {
-        for (int i=0; i<mTiles.length; i++) {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+            mExecutor = null;
+        }
+        if (mSpill != null) {
+            mSpill.close();
+            mSpill = null;
+        }
+        for (int i=0; i<mTileCount; i++) {
             mTiles[i].clear();
             mTiles[i] = null;
         }
         mTiles = null;
+        mTileCount = 0;
+        if (DEBUG_VERBOSE) {
+            Log.v(TAG, String.format("bitmap pool: %d hits, %d misses",
+                    mPool.getHits(), mPool.getMisses()));
+        }
+        mPool.clear();
     }
 
-    // By using this to get a Canvas to draw into, you ensure that mVersionInUse is current
+    // By using this to get a Canvas to draw into, you ensure that mVersionInUse is current.
+    // Call it, and draw, with the tile's stripe lock held.
     private Canvas getDrawingCanvas(Tile t) {
-        mVersionInUse = true;
+        beginWrite();
+        t.written = true;
         return t.getCanvas(mNewVersion);
     }
 
-    private void load(Bitmap bitmap) {
+    private Object tileLock(Tile t) {
+        return mTileLocks[((t.y & TILE_LOCK_MASK) << TILE_LOCK_SHIFT) | (t.x & TILE_LOCK_MASK)];
+    }
+
+    // Writing a new version throws away anything that was undone.
+    private void beginWrite() {
+        if (mVersionInUse) return;
+        synchronized (mWriteLock) {
+            if (mVersionInUse) return;
+            if (mTopVersion >= mNewVersion) {
+                for (int i=0; i<mTileCount; i++) {
+                    mTiles[i].discardRedo();
+                }
+                mTopVersion = mNewVersion - 1;
+            }
+            mVersionInUse = true;
+        }
+    }
+
+    private void load(final Bitmap bitmap) {
         mTilesX = mWidth / mTileSize + ((mWidth % mTileSize) == 0 ? 0 : 1);
         mTilesY = mHeight / mTileSize + ((mHeight % mTileSize) == 0 ? 0 : 1);
+        // Enough to clear a whole page and draw all over it again, load a picture, or scroll a
+        // screenful of new tiles in (the page is normally the size of the screen). Whoever sizes
+        // the history budget has to leave room for it.
+        mPool = new TileBitmapPool(mTileSize, mConfig, mTilesX * mTilesY);
+        if (mInfinite) {
+            // nothing to allocate until somebody draws
+            mTiles = new Tile[max(16, mTilesX * mTilesY)];
+            mTileTable = new int[Integer.highestOneBit(mTiles.length) * 4];
+            return;
+        }
         mTiles = new Tile[mTilesX * mTilesY];
+        mTileCount = mTiles.length;
         
         final Paint paint = new Paint();
-        for (int j=0; j<mTilesY; j++) {
-            for (int i=0; i<mTilesX; i++) {
-                final int p = j * mTilesX + i;
-                final Tile t = new Tile(i, j, mNewVersion); // XXX: version
-                mTiles[p] = t;
-                if (bitmap != null) {
-                    getDrawingCanvas(t).drawBitmap(bitmap, 0, 0, paint);
+        forEachBand(0, mTilesY, new BandOp() {
+            @Override
+            public void run(int from, int to) {
+                for (int j=from; j<to; j++) {
+                    for (int i=0; i<mTilesX; i++) {
+                        final int p = j * mTilesX + i;
+                        final Tile t = new Tile(i, j, mNewVersion); // XXX: version
+                        mTiles[p] = t;
+                        if (bitmap != null) {
+                            synchronized (tileLock(t)) {
+                                getDrawingCanvas(t).drawBitmap(bitmap, 0, 0, paint);
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private static int tileHash(int x, int y) {
+        final int h = x * 0x9E3779B1 + y * 0x85EBCA6B;
+        return h ^ (h >>> 16);
+    }
+
+    // Returns the tile at tile coordinates (x, y), or null if there isn't one (yet).
+    private Tile findTile(int x, int y) {
+        if (!mInfinite) return mTiles[y*mTilesX + x];
+        final int mask = mTileTable.length - 1;
+        for (int i = tileHash(x, y) & mask; ; i = (i + 1) & mask) {
+            final int k = mTileTable[i];
+            if (k == 0) return null;
+            final Tile t = mTiles[k-1];
+            if (t.x == x && t.y == y) return t;
+        }
+    }
+
+    // Like findTile, but makes room for a new tile on an infinite canvas.
+    private Tile getTile(int x, int y) {
+        if (!mInfinite) return mTiles[y*mTilesX + x];
+        synchronized (mWriteLock) {
+            return getOrAddTile(x, y);
+        }
+    }
+
+    private Tile getOrAddTile(int x, int y) {
+        Tile t = findTile(x, y);
+        if (t == null) {
+            // a tile that didn't exist was blank all along, as far back as history goes
+            t = new Tile(x, y, mBottomVersion);
+            if (mTileCount == mTiles.length) {
+                final Tile[] tiles = new Tile[mTileCount * 2];
+                System.arraycopy(mTiles, 0, tiles, 0, mTileCount);
+                mTiles = tiles; // the helper thread may still be working from the old array
+            }
+            mTiles[mTileCount++] = t;
+            if (mTileCount * 2 > mTileTable.length) {
+                mTileTable = new int[mTileTable.length * 2];
+                for (int i=0; i<mTileCount; i++) {
+                    hashTile(i);
                 }
+            } else {
+                hashTile(mTileCount - 1);
             }
         }
+        return t;
+    }
+
+    private void hashTile(int index) {
+        final Tile t = mTiles[index];
+        final int mask = mTileTable.length - 1;
+        int i = tileHash(t.x, t.y) & mask;
+        while (mTileTable[i] != 0) i = (i + 1) & mask;
+        mTileTable[i] = index + 1;
+    }
+
+    // This gets called several times for every stamp, so no floating-point division.
+    private static int floor(float v) {
+        final int i = (int) v;
+        return (v < i) ? i - 1 : i;
+    }
+
+    // The range of tiles touched by a span of canvas coordinates, clipped to the canvas unless
+    // it's infinite.
+    private int firstTile(float v) {
+        final int t = floor(v) >> mTileShift;
+        return mInfinite ? t : max(0, t);
+    }
+    private int lastTileX(float v) {
+        final int t = floor(v) >> mTileShift;
+        return mInfinite ? t : min(mTilesX-1, t);
+    }
+    private int lastTileY(float v) {
+        final int t = floor(v) >> mTileShift;
+        return mInfinite ? t : min(mTilesY-1, t);
     }
 
     public static final int max(int a, int b) {
@@ -248,14 +1200,16 @@ public class TiledBitmapCanvas implements CanvasLite {
     }
 
     public void drawRect(float l, float t, float r, float b, Paint paint) {
-        final int tilel = max(0,(int)FloatMath.floor((l-INVALIDATE_PADDING) / mTileSize));
-        final int tilet = max(0,(int)FloatMath.floor((t-INVALIDATE_PADDING) / mTileSize));
-        final int tiler = min(mTilesX-1, (int)FloatMath.floor((r+INVALIDATE_PADDING) / mTileSize));
-        final int tileb = min(mTilesY-1, (int)FloatMath.floor((b+INVALIDATE_PADDING) / mTileSize));
+        final int tilel = firstTile(l-INVALIDATE_PADDING);
+        final int tilet = firstTile(t-INVALIDATE_PADDING);
+        final int tiler = lastTileX(r+INVALIDATE_PADDING);
+        final int tileb = lastTileY(b+INVALIDATE_PADDING);
         for (int tiley = tilet; tiley <= tileb; tiley++) {
             for (int tilex = tilel; tilex <= tiler; tilex++) {
-                final Tile tile = mTiles[tiley*mTilesX + tilex];
-                getDrawingCanvas(tile).drawRect(l, t, r, b, paint);
+                final Tile tile = getTile(tilex, tiley);
+                synchronized (tileLock(tile)) {
+                    getDrawingCanvas(tile).drawRect(l, t, r, b, paint);
+                }
                 tile.dirty = true;
             }
         }
@@ -263,59 +1217,107 @@ public class TiledBitmapCanvas implements CanvasLite {
 
     public void drawCircle(float x, float y, float r, Paint paint) {
         final float invalR = r + INVALIDATE_PADDING;
-        final int tilel = max(0, (int)FloatMath.floor((x-invalR) / mTileSize));
-        final int tilet = max(0, (int)FloatMath.floor((y-invalR) / mTileSize));
-        final int tiler = min(mTilesX-1, (int)FloatMath.floor((x+invalR) / mTileSize));
-        final int tileb = min(mTilesY-1, (int)FloatMath.floor((y+invalR) / mTileSize));
+        final int tilel = firstTile(x-invalR);
+        final int tilet = firstTile(y-invalR);
+        final int tiler = lastTileX(x+invalR);
+        final int tileb = lastTileY(y+invalR);
         for (int tiley = tilet; tiley <= tileb; tiley++) {
             for (int tilex = tilel; tilex <= tiler; tilex++) {
-                final Tile tile = mTiles[tiley*mTilesX + tilex];
-                getDrawingCanvas(tile).drawCircle(x, y, r, paint);
+                final Tile tile = getTile(tilex, tiley);
+                synchronized (tileLock(tile)) {
+                    getDrawingCanvas(tile).drawCircle(x, y, r, paint);
+                }
                 tile.dirty = true;
             }
         }
     }
 
-    public void drawColor(int color, PorterDuff.Mode mode) {
-        for (int i=0; i<mTiles.length; i++) {
-            final Tile tile = mTiles[i];
-            getDrawingCanvas(tile).drawColor(color, mode);
-            tile.dirty = true;
-        }
+    public void drawColor(int color, final PorterDuff.Mode mode) {
+        // modes that leave every pixel the same don't need any pixels at all
+        final boolean uniform = (mode == PorterDuff.Mode.SRC || mode == PorterDuff.Mode.CLEAR
+                || (mode == PorterDuff.Mode.SRC_OVER && Color.alpha(color) == 0xFF));
+        final int c = (mode == PorterDuff.Mode.CLEAR) ? Color.TRANSPARENT : color;
+        if (uniform && mTileCount > 0) beginWrite();
+        // (on an infinite canvas, tiles that don't exist yet stay transparent)
+        forEachBand(0, mTileCount, new BandOp() {
+            @Override
+            public void run(int from, int to) {
+                for (int i=from; i<to; i++) {
+                    final Tile tile = mTiles[i];
+                    synchronized (tileLock(tile)) {
+                        if (uniform) {
+                            tile.written = true;
+                            tile.setUniform(mNewVersion, c);
+                        } else {
+                            getDrawingCanvas(tile).drawColor(c, mode);
+                        }
+                    }
+                    tile.dirty = true;
+                }
+            }
+        });
     }
 
     @Override
     public void drawBitmap(Bitmap bitmap, Rect src, RectF dst, Paint paint) {
-        final int tilel = max(0,(int)FloatMath.floor((dst.left-INVALIDATE_PADDING) / mTileSize));
-        final int tilet = max(0,(int)FloatMath.floor((dst.top-INVALIDATE_PADDING) / mTileSize));
-        final int tiler = min(mTilesX-1, (int)FloatMath.floor((dst.right+INVALIDATE_PADDING) / mTileSize));
-        final int tileb = min(mTilesY-1, (int)FloatMath.floor((dst.bottom+INVALIDATE_PADDING) / mTileSize));
+        final int tilel = firstTile(dst.left-INVALIDATE_PADDING);
+        final int tilet = firstTile(dst.top-INVALIDATE_PADDING);
+        final int tiler = lastTileX(dst.right+INVALIDATE_PADDING);
+        final int tileb = lastTileY(dst.bottom+INVALIDATE_PADDING);
         for (int tiley = tilet; tiley <= tileb; tiley++) {
             for (int tilex = tilel; tilex <= tiler; tilex++) {
-                final Tile tile = mTiles[tiley*mTilesX + tilex];
-                getDrawingCanvas(tile).drawBitmap(bitmap, src, dst, paint);
+                final Tile tile = getTile(tilex, tiley);
+                synchronized (tileLock(tile)) {
+                    getDrawingCanvas(tile).drawBitmap(bitmap, src, dst, paint);
+                }
                 tile.dirty = true;
             }
         }
     }
 
     @Override
-    public void drawBitmap(Bitmap bitmap, Matrix matrix, Paint paint) {
-        RectF dst = new RectF(0, 0, bitmap.getWidth(), bitmap.getHeight());
-        matrix.mapRect(dst);
-        final int tilel = max(0,(int)FloatMath.floor((dst.left-INVALIDATE_PADDING) / mTileSize));
-        final int tilet = max(0,(int)FloatMath.floor((dst.top-INVALIDATE_PADDING) / mTileSize));
-        final int tiler = min(mTilesX-1, (int)FloatMath.floor((dst.right+INVALIDATE_PADDING) / mTileSize));
-        final int tileb = min(mTilesY-1, (int)FloatMath.floor((dst.bottom+INVALIDATE_PADDING) / mTileSize));
+    public void drawBitmap(Bitmap bitmap, float left, float top, Paint paint) {
+        final int tilel = firstTile(left-INVALIDATE_PADDING);
+        final int tilet = firstTile(top-INVALIDATE_PADDING);
+        final int tiler = lastTileX(left+bitmap.getWidth()+INVALIDATE_PADDING);
+        final int tileb = lastTileY(top+bitmap.getHeight()+INVALIDATE_PADDING);
         for (int tiley = tilet; tiley <= tileb; tiley++) {
             for (int tilex = tilel; tilex <= tiler; tilex++) {
-                final Tile tile = mTiles[tiley*mTilesX + tilex];
-                getDrawingCanvas(tile).drawBitmap(bitmap, matrix, paint);
+                final Tile tile = getTile(tilex, tiley);
+                synchronized (tileLock(tile)) {
+                    getDrawingCanvas(tile).drawBitmap(bitmap, left, top, paint);
+                }
                 tile.dirty = true;
             }
         }
     }
 
+    // This one is usually a whole picture going in, so the rows are shared out (forEachBand).
+    @Override
+    public void drawBitmap(final Bitmap bitmap, final Matrix matrix, final Paint paint) {
+        final RectF dst = mTmpRectF;
+        dst.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        matrix.mapRect(dst);
+        final int tilel = firstTile(dst.left-INVALIDATE_PADDING);
+        final int tilet = firstTile(dst.top-INVALIDATE_PADDING);
+        final int tiler = lastTileX(dst.right+INVALIDATE_PADDING);
+        final int tileb = lastTileY(dst.bottom+INVALIDATE_PADDING);
+        forEachBand(tilet, tileb + 1, new BandOp() {
+            @Override
+            public void run(int from, int to) {
+                for (int tiley = from; tiley < to; tiley++) {
+                    for (int tilex = tilel; tilex <= tiler; tilex++) {
+                        final Tile tile = getTile(tilex, tiley);
+                        synchronized (tileLock(tile)) {
+                            getDrawingCanvas(tile).drawBitmap(bitmap, matrix, paint);
+                        }
+                        tile.dirty = true;
+                    }
+                }
+            }
+        });
+    }
+
     private static Paint dbgPaint = new Paint(0);
     private static Paint dbgStroke = new Paint(0);
     private static Paint dbgTextPaint = new Paint(0);
@@ -327,6 +1329,10 @@ public class TiledBitmapCanvas implements CanvasLite {
         dbgTextPaint.setTextSize(20.0f);
     }
     private int mDrawCount = 0;
+    private final Paint mUniformPaint = new Paint();
+    // scratch for the drawing paths, which run on the UI thread and mustn't allocate
+    private final Rect mTileSrc = new Rect(), mTileDst = new Rect();
+    private final RectF mTmpRectF = new RectF();
 
     final static int DEBUG_COLORS[] = {
         0x40FF0000, 0x40FFFF00, 0x4000FF00, 0x400000FF, 0x40FF00FF,
@@ -336,35 +1342,98 @@ public class TiledBitmapCanvas implements CanvasLite {
 
     @Override
     public void drawTo(Canvas drawCanvas, float left, float top, Paint paint, boolean onlyDirty) {
-        final Rect src = new Rect(0, 0, mTileSize, mTileSize);
-        final Rect dst = new Rect(0, 0, mTileSize, mTileSize);
+        drawTo(drawCanvas, left, top, paint, onlyDirty, null);
+    }
+
+    @Override
+    public void drawTo(Canvas drawCanvas, float left, float top, Paint paint, boolean onlyDirty,
+            RectF visible) {
+        final Rect src = mTileSrc;
+        final Rect dst = mTileDst;
+        src.set(0, 0, mTileSize, mTileSize);
+        dst.set(0, 0, mTileSize, mTileSize);
         drawCanvas.save();
         drawCanvas.translate(-left, -top);
-        drawCanvas.clipRect(0, 0, mWidth, mHeight);
-        for (int j=0; j<mTilesY; j++) {
-            for (int i=0; i<mTilesX; i++) {
-                dst.offsetTo(i*mTileSize, j*mTileSize);
-                final int p = j * mTilesX + i;
-                final Tile tile = mTiles[p];
-                if (!onlyDirty || tile.dirty) {
-                    drawCanvas.drawBitmap(tile.getBitmap(), src, dst, paint);
-                    tile.dirty = false;
-                    if (mDebug) {
-                        mDrawCount++;
-                        dbgPaint.setColor(DEBUG_COLORS[tile.top % DEBUG_COLORS.length]);
-                        //drawCanvas.drawRect(dst, (mDrawCount % 2 == 0) ? dbgPaint1 : dbgPaint2);
-                        drawCanvas.drawRect(dst, dbgPaint);
-                        //drawCanvas.drawRect(dst, dbgStroke);
-                        drawCanvas.drawText(
-                                String.format("%d,%d v%d", tile.x, tile.y, tile.top),
-                                dst.left + 4, dst.bottom - 4, dbgTextPaint);
-                    }
+        if (mInfinite && visible == null) {
+            for (int i=0; i<mTileCount; i++) {
+                drawTile(drawCanvas, mTiles[i], src, dst, paint, onlyDirty);
+            }
+            drawCanvas.restore();
+            return;
+        }
+        int tilel = 0, tilet = 0, tiler = mTilesX-1, tileb = mTilesY-1;
+        if (visible != null) {
+            // skip the loop over everything the clip would throw away anyway
+            tilel = firstTile(visible.left);
+            tilet = firstTile(visible.top);
+            tiler = lastTileX(visible.right);
+            tileb = lastTileY(visible.bottom);
+        }
+        if (!mInfinite) {
+            drawCanvas.clipRect(0, 0, mWidth, mHeight);
+        }
+        for (int j=tilet; j<=tileb; j++) {
+            for (int i=tilel; i<=tiler; i++) {
+                final Tile tile = findTile(i, j);
+                if (tile != null) {
+                    drawTile(drawCanvas, tile, src, dst, paint, onlyDirty);
                 }
             }
         }
         drawCanvas.restore();
     }
 
+    private void drawTile(Canvas drawCanvas, Tile tile, Rect src, Rect dst, Paint paint,
+            boolean onlyDirty) {
+        if (onlyDirty && !tile.dirty) return;
+        dst.offsetTo(tile.x << mTileShift, tile.y << mTileShift);
+        // drawing over the last frame's copy of this tile (see Slate.mScreen), so start clean
+        if (onlyDirty) drawCanvas.drawRect(dst, sClearPaint);
+        final Tile.Version v = tile.current();
+        final Bitmap mip = (mMipLevel > 0 && v.bitmap != null)
+                ? tile.getMip(mMipLevel) : null;
+        if (mip != null) {
+            mMipSrc.set(0, 0, mip.getWidth(), mip.getHeight());
+            drawCanvas.drawBitmap(mip, mMipSrc, dst, paint);
+        } else if (v.bitmap != null) {
+            drawCanvas.drawBitmap(v.bitmap, src, dst, paint);
+        } else {
+            final int color = v.color;
+            if (color != Color.TRANSPARENT) {
+                mUniformPaint.setColor(color);
+                drawCanvas.drawRect(dst, mUniformPaint);
+            }
+        }
+        tile.dirty = false;
+        if (mDebug) {
+            mDrawCount++;
+            dbgPaint.setColor(DEBUG_COLORS[tile.top % DEBUG_COLORS.length]);
+            //drawCanvas.drawRect(dst, (mDrawCount % 2 == 0) ? dbgPaint1 : dbgPaint2);
+            drawCanvas.drawRect(dst, dbgPaint);
+            //drawCanvas.drawRect(dst, dbgStroke);
+            drawCanvas.drawText(
+                    String.format("%d,%d v%d", tile.x, tile.y, tile.top),
+                    dst.left + 4, dst.bottom - 4, dbgTextPaint);
+        }
+    }
+
+    public boolean isInfinite() {
+        return mInfinite;
+    }
+
+    // Everything that has been drawn on, plus the initial page. (Just the page, unless the
+    // canvas is infinite.)
+    public Rect getContentBounds(Rect r) {
+        r.set(0, 0, mWidth, mHeight);
+        if (mInfinite) {
+            for (int i=0; i<mTileCount; i++) {
+                final Tile t = mTiles[i];
+                r.union(t.x*mTileSize, t.y*mTileSize, (t.x+1)*mTileSize, (t.y+1)*mTileSize);
+            }
+        }
+        return r;
+    }
+
     public int getWidth() {
         return mWidth;
     }
@@ -377,17 +1446,56 @@ public class TiledBitmapCanvas implements CanvasLite {
     }
 
     public Bitmap toBitmap(int bgcolor) {
-        Bitmap bitmap = Bitmap.createBitmap(mWidth, mHeight, mConfig);
+        final Rect bounds = getContentBounds(new Rect());
+        final Bitmap bitmap = Bitmap.createBitmap(bounds.width(), bounds.height(), mConfig);
         Canvas canvas = new Canvas(bitmap);
 
         if (bgcolor != Color.TRANSPARENT) {
             canvas.drawColor(bgcolor);
         }
 
-        drawTo(canvas, 0, 0, null, false);
+        // Tiles don't overlap, so each band can have its own Canvas onto the same bitmap.
+        // (Unlike drawTo(), this leaves the tiles' dirty bits alone.)
+        forEachBand(0, mTileCount, new BandOp() {
+            @Override
+            public void run(int from, int to) {
+                final Canvas c = new Canvas(bitmap);
+                c.translate(-bounds.left, -bounds.top);
+                final Rect src = new Rect(), dst = new Rect();
+                final Paint uniform = new Paint();
+                for (int i=from; i<to; i++) {
+                    final Tile tile = mTiles[i];
+                    dst.set(0, 0, mTileSize, mTileSize);
+                    dst.offsetTo(tile.x << mTileShift, tile.y << mTileShift);
+                    src.set(0, 0, mTileSize, mTileSize);
+                    if (!mInfinite) {
+                        dst.right = min(dst.right, mWidth);
+                        dst.bottom = min(dst.bottom, mHeight);
+                        src.set(0, 0, dst.width(), dst.height());
+                    }
+                    final Tile.Version v = tile.current();
+                    if (v.bitmap != null) {
+                        c.drawBitmap(v.bitmap, src, dst, null);
+                    } else if (v.color != Color.TRANSPARENT) {
+                        uniform.setColor(v.color);
+                        c.drawRect(dst, uniform);
+                    }
+                }
+            }
+        });
         return bitmap;
     }
 
+    // Tells drawTo how much the tiles will be scaled on screen, so it can pick a mip level.
+    public void setDrawScale(float scale) {
+        int level = 0;
+        while (level < MAX_MIP_LEVEL && scale <= 0.5f) {
+            scale *= 2;
+            level++;
+        }
+        mMipLevel = level;
+    }
+
     public void commit() {
         if (!mVersionInUse) return;
 
@@ -395,10 +1503,22 @@ public class TiledBitmapCanvas implements CanvasLite {
         if (mNewVersion - mBottomVersion > mMaxVersions) {
             mBottomVersion++;
         }
+        mTopVersion = mNewVersion - 1;
         mVersionInUse = false;
+        trimHistory();
+
+        // Everything touched by the version we just closed is frozen now, so this is the time
+        // to make the copies that the next write to each of those tiles will need.
+        for (int i=0; i<mTileCount; i++) {
+            final Tile tile = mTiles[i];
+            if (tile.written) {
+                tile.written = false;
+                tile.scheduleSnapshot();
+            }
+        }
         if (DEBUG_TILES_ON_COMMIT) {
             Log.v(TAG, "commit: next=" + mNewVersion + " top=" + (mNewVersion-1) + " bot=" + mBottomVersion);
-            for (int i=0; i<mTiles.length; i++) {
+            for (int i=0; i<mTileCount; i++) {
                 final Tile tile = mTiles[i];
                 Log.v(TAG, String.format("   %2d [%2d,%2d]: %s",
                         i,
@@ -409,26 +1529,71 @@ public class TiledBitmapCanvas implements CanvasLite {
         }
     }
 
+    // Drops the oldest versions until the compressed history fits in its budget again.
+    // Deltas are produced on the helper thread, so this lags a commit behind; that's fine.
+    // With a spill file the helper moves old deltas out to disk instead, and we only drop
+    // history here once the file has filled up.
+    private void trimHistory() {
+        final HistorySpill spill = mSpill;
+        if (spill != null && !spill.isFull()) {
+            if (mHistoryBytes.get() > mMaxHistoryBytes && mExecutor != null) {
+                final Tile[] tiles = mTiles;
+                final int count = mTileCount;
+                final int newest = mNewVersion - 2; // leave the most recent undo in the heap
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        spillHistory(tiles, count, spill, newest);
+                    }
+                });
+            }
+            return;
+        }
+        while (mHistoryBytes.get() > mMaxHistoryBytes && mBottomVersion < mNewVersion - 1) {
+            mBottomVersion++;
+            for (int i=0; i<mTileCount; i++) {
+                mTiles[i].trim(mBottomVersion);
+            }
+        }
+    }
+
+    // Runs on the helper thread.
+    private void spillHistory(Tile[] tiles, int count, HistorySpill spill, int newest) {
+        // oldest first; versions that are already out on disk cost next to nothing to skip
+        int v = mBottomVersion;
+        for (; v <= newest && mHistoryBytes.get() > mMaxHistoryBytes; v++) {
+            for (int i=0; i<count; i++) {
+                if (!tiles[i].spill(v, spill)) {
+                    Log.w(TAG, "history spill file is full at v" + v);
+                    return;
+                }
+            }
+        }
+        if (mDebug) {
+            Log.v(TAG, String.format("spilled through v%d: heap=%d disk=%d",
+                    v - 1, mHistoryBytes.get(), spill.getSize()));
+        }
+    }
+
+    // Moves through history: negative to undo, positive to redo. Versions that have been undone
+    // stay around until the next write.
     public void step(int delta) {
-        final int oldTop = mVersionInUse ? mNewVersion : mNewVersion-1;
+        commit(); // anything in progress becomes part of the history, so it can be redone
+        final int oldTop = mNewVersion-1;
         int newTop = oldTop + delta;       // step
-        if (newTop < mBottomVersion) {
-            if (newTop == mBottomVersion) return; // we're already at the end
-            newTop = mBottomVersion;
-        }
+        if (newTop < mBottomVersion) newTop = mBottomVersion;
+        if (newTop > mTopVersion) newTop = mTopVersion;
+        if (newTop == oldTop) return; // we're already at the end
         if (mDebug) {
-            Log.v(TAG, String.format("step(%d): oldTop=%d newTop=%d bot=%d", delta, 
-                    oldTop, newTop, mBottomVersion));
+            Log.v(TAG, String.format("step(%d): oldTop=%d newTop=%d bot=%d top=%d", delta, 
+                    oldTop, newTop, mBottomVersion, mTopVersion));
         }
-        for (int i=0; i<mTiles.length; i++) {
+        for (int i=0; i<mTileCount; i++) {
             final Tile tile = mTiles[i];
-            if (tile.bottom == newTop) {
-                // XXX: bottomed out; do something
+            if (tile.revert(newTop)) {
+                tile.dirty = true;
             }
-            tile.revert(newTop);
-            tile.dirty = true; // XXX: only do this if the version changed, i.e. tile.top > mVersion
         }
         mNewVersion = newTop + 1;
-        mVersionInUse = false;
     }
 }